@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Retained heap of a parsed manifest, which the gc profiler of
+ * {@link FileInfoParseBenchmark} doesn't show: heap used after GC while the
+ * parsed form is reachable, minus heap used after GC before parsing.
+ * Compares the columnar {@link FileInfoMap} with the {@link FileInfo} list
+ * of the line by line parse it replaced.
+ * <p>
+ * {@code gradlew jmhFootprint}, or
+ * {@code java -cp <jmh jar> acmi.l2.clientmod.l2_version_switcher.FileInfoFootprint [entries...]}.
+ */
+public class FileInfoFootprint {
+    private static final int RUNS = 5;
+    private static final int GC_RUNS = 5;
+
+    private static Object held;
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = args.length > 0 ?
+                Arrays.stream(args).mapToInt(Integer::parseInt).toArray() :
+                new int[]{1000, 100000};
+        for (int entries : sizes) {
+            byte[] data = FileInfoParseBenchmark.manifest(entries);
+            // first run loads classes and warms up, the median of the others is reported
+            long[] map = new long[RUNS + 1];
+            long[] list = new long[RUNS + 1];
+            for (int run = 0; run <= RUNS; run++) {
+                map[run] = retained(() -> FileInfoMap.read(new ByteArrayInputStream(data)));
+                list[run] = retained(() -> FileInfoParseBenchmark.parse(data));
+            }
+            long mapBytes = median(map);
+            long listBytes = median(list);
+            System.out.println(String.format(Locale.ROOT, "%7d entries: FileInfoMap %s (%d B/entry), List<FileInfo> %s (%d B/entry), %.1fx smaller",
+                    entries, Metrics.formatBytes(mapBytes), mapBytes / entries, Metrics.formatBytes(listBytes), listBytes / entries,
+                    (double) listBytes / mapBytes));
+        }
+    }
+
+    private static long retained(Parser parser) throws IOException {
+        long before = usedAfterGc();
+        held = parser.parse();
+        long after = usedAfterGc();
+        held = null;
+        return after - before;
+    }
+
+    private static long median(long[] runs) {
+        long[] sorted = Arrays.copyOfRange(runs, 1, runs.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Sum of the heap pools' usage right after the last GC. Plain heap
+     * usage would include what was allocated since then; a single GC may
+     * leave garbage from just before it, so several are run.
+     */
+    private static long usedAfterGc() {
+        for (int i = 0; i < GC_RUNS; i++) {
+            System.gc();
+        }
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    @FunctionalInterface
+    private interface Parser {
+        Object parse() throws IOException;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a decompressed synthetic FileInfoMap: the columnar
+ * {@link FileInfoMap}, the {@link FileInfo} list built from it, and the
+ * line by line {@link FileInfo#parse} it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileInfoParseBenchmark {
+    private static final String[] DIRS = {"system", "maps", "textures", "animations", "staticmeshes", "sounds", "music", "voice"};
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = manifest(entries);
+    }
+
+    /**
+     * Decompressed manifest of {@code entries} synthetic files.
+     */
+    static byte[] manifest(int entries) {
+        Random random = new Random(entries);
+        StringBuilder sb = new StringBuilder("\uFEFF");
+        byte[] hash = new byte[FileInfoMap.HASH_LENGTH];
+        for (int i = 0; i < entries; i++) {
+            random.nextBytes(hash);
+            sb.append(DIRS[random.nextInt(DIRS.length)]).append('\\').append("file").append(i).append(".utx")
+                    .append(':').append(random.nextInt(1 << 24))
+                    .append(':').append(Util.toHexBinary(hash))
+                    .append(":0\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_16BE);
+    }
+
+    @Benchmark
+    public FileInfoMap fileInfoMap() throws IOException {
+        return FileInfoMap.read(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public List<FileInfo> fileInfoList() throws IOException {
+        return Util.getFileInfo(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public List<FileInfo> fileInfoParse() throws IOException {
+        return parse(data);
+    }
+
+    /**
+     * The line by line parse {@link FileInfoMap} replaced.
+     */
+    static List<FileInfo> parse(byte[] data) throws IOException {
+        List<FileInfo> list = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_16))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    list.add(FileInfo.parse(line));
+                }
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing a file from the page cache: the stream based {@link Util#hashEquals}
+ * against the {@link HashEngine} used for verification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HashBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private File file;
+    private String hash;
+    private HashEngine hashEngine;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        file = File.createTempFile("hash", ".bin");
+        Files.write(file.toPath(), data);
+        hash = Util.toHexBinary(HashEngine.sha1().digest(data));
+        hashEngine = new HashEngine(1, HashEngine.DEFAULT_BUFFER_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        hashEngine.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean hashEquals() throws IOException {
+        return Util.hashEquals(file, hash);
+    }
+
+    @Benchmark
+    public byte[] hashEngine() throws IOException {
+        return hashEngine.hash(file);
+    }
+}
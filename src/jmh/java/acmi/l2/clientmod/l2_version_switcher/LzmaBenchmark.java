@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.openjdk.jmh.annotations.*;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding an LZMA archive of mixed text and random data with
+ * {@link Util#getUnzipStream}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LzmaBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private byte[] compressed;
+    private final byte[] buffer = new byte[ChunkPipe.DEFAULT_CHUNK_SIZE];
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ) {
+            int n = Math.min(size - i, 1 + random.nextInt(4096));
+            if (random.nextBoolean()) {
+                byte[] chunk = new byte[n];
+                random.nextBytes(chunk);
+                System.arraycopy(chunk, 0, data, i, n);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    data[i + j] = (byte) ('a' + (j * 7 + i) % 26);
+                }
+            }
+            i += n;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (LZMAOutputStream lzma = new LZMAOutputStream(baos, new LZMA2Options(), size)) {
+            lzma.write(data);
+        }
+        compressed = baos.toByteArray();
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        long total = 0;
+        try (InputStream is = Util.getUnzipStream(new ByteArrayInputStream(compressed))) {
+            int r;
+            while ((r = is.read(buffer)) >= 0) {
+                total += r;
+            }
+        }
+        return total;
+    }
+}
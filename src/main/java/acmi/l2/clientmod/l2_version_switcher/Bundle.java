@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One file holding a version's manifest and the compressed payloads of
+ * some or all of its files, for machines that can't reach the patch
+ * server. Payloads are stored exactly as served, split archives joined,
+ * so applying a bundle only decodes.
+ * <pre>
+ * "L2VSBNDL" format:int
+ * manifest and payloads
+ * index: game:UTF version:int from:int manifestOffset:long manifestLength:long
+ *        count:int { path:UTF size:long hash:byte[20] offset:long length:long }
+ * indexOffset:long "L2VSBNDL"
+ * </pre>
+ * {@code from} is the version a delta bundle was made against, 0 for a
+ * full one. Payloads are read with positional reads, so any number of
+ * threads can decode from one open bundle.
+ */
+public class Bundle implements Closeable {
+    public static final int FORMAT_VERSION = 1;
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = "L2VSBNDL".getBytes(StandardCharsets.US_ASCII);
+    private static final int FOOTER_SIZE = 8 + MAGIC.length;
+
+    private final File file;
+    private final FileChannel channel;
+    private final LongAdder bytesRead = new LongAdder();
+    private String game;
+    private int version;
+    private int from;
+    private long manifestOffset;
+    private long manifestLength;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private Bundle(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    public static Bundle open(File file) throws IOException {
+        Bundle bundle = new Bundle(file);
+        try {
+            bundle.readIndex();
+        } catch (IOException | RuntimeException e) {
+            bundle.close();
+            throw e;
+        }
+        return bundle;
+    }
+
+    private void readIndex() throws IOException {
+        long size = channel.size();
+        if (size < MAGIC.length + 4 + FOOTER_SIZE) {
+            throw new IOException(file + ": not a bundle");
+        }
+        DataInputStream header = new DataInputStream(open(0, MAGIC.length + 4));
+        checkMagic(header);
+        int format = header.readInt();
+        if (format != FORMAT_VERSION) {
+            throw new IOException(file + ": unsupported bundle format " + format);
+        }
+
+        DataInputStream footer = new DataInputStream(open(size - FOOTER_SIZE, FOOTER_SIZE));
+        long indexOffset = footer.readLong();
+        checkMagic(footer);
+        if (indexOffset < MAGIC.length + 4 || indexOffset > size - FOOTER_SIZE) {
+            throw new IOException(file + ": bad index offset " + indexOffset);
+        }
+
+        DataInputStream index = new DataInputStream(new BufferedInputStream(open(indexOffset, size - FOOTER_SIZE - indexOffset)));
+        game = index.readUTF();
+        version = index.readInt();
+        from = index.readInt();
+        manifestOffset = index.readLong();
+        manifestLength = index.readLong();
+        int count = index.readInt();
+        for (int i = 0; i < count; i++) {
+            String path = index.readUTF();
+            long fileSize = index.readLong();
+            byte[] hash = new byte[FileInfoMap.HASH_LENGTH];
+            index.readFully(hash);
+            Entry entry = new Entry(path, fileSize, hash, index.readLong(), index.readLong());
+            if (entry.offset < 0 || entry.length < 0 || entry.offset + entry.length > indexOffset) {
+                throw new IOException(file + ": " + path + " is out of bounds");
+            }
+            entries.put(path, entry);
+        }
+        bytesRead.reset();
+    }
+
+    private void checkMagic(DataInputStream dis) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException(file + ": not a bundle");
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getGame() {
+        return game;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return version this delta bundle was made against, 0 for a full bundle
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    public FileInfoMap getFileInfoMap() throws IOException {
+        try (InputStream is = Util.getUnzipStream(new BufferedInputStream(open(manifestOffset, manifestLength), BUFFER_SIZE))) {
+            return FileInfoMap.read(is);
+        }
+    }
+
+    /**
+     * @return {@code null} if the bundle has no payload for {@code path}
+     */
+    public Entry getEntry(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Compressed payload of {@code entry}, as served by the patch server.
+     */
+    public InputStream open(Entry entry) {
+        return new BufferedInputStream(open(entry.offset, entry.length), BUFFER_SIZE);
+    }
+
+    /**
+     * Payload bytes read so far.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    private InputStream open(long offset, long length) {
+        return new InputStream() {
+            private long position = offset;
+            private final long end = offset + length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                int r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+                if (r < 0) {
+                    throw new EOFException(file + " is truncated");
+                }
+                position += r;
+                bytesRead.add(r);
+                return r;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, end - position);
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static class Entry {
+        private final String path;
+        private final long size;
+        private final byte[] hash;
+        private final long offset;
+        private final long length;
+
+        Entry(String path, long size, byte[] hash, long offset, long length) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Decompressed size.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        public boolean hashEquals(byte[] hash) {
+            return Arrays.equals(this.hash, hash);
+        }
+
+        /**
+         * Compressed size.
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Appends payloads as they are added, in any order and from any
+     * thread, and writes the index on {@link #close()}.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final String game;
+        private final int version;
+        private final int from;
+        private final List<Entry> entries = new ArrayList<>();
+        private long manifestOffset;
+        private long manifestLength;
+        private long position;
+
+        public Writer(File file, String game, int version, int from) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.game = game;
+            this.version = version;
+            this.from = from;
+
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+            header.put(MAGIC).putInt(FORMAT_VERSION).flip();
+            write(header);
+        }
+
+        /**
+         * @param compressed the manifest as served, i.e. still LZMA compressed
+         */
+        public synchronized void putManifest(InputStream compressed) throws IOException {
+            manifestOffset = position;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int r;
+            while ((r = compressed.read(buffer)) >= 0) {
+                write(ByteBuffer.wrap(buffer, 0, r));
+            }
+            manifestLength = position - manifestOffset;
+        }
+
+        /**
+         * @param payload compressed payload of {@code fileInfo}
+         */
+        public synchronized void put(FileInfo fileInfo, File payload) throws IOException {
+            long offset = position;
+            try (FileChannel source = FileChannel.open(payload.toPath(), StandardOpenOption.READ)) {
+                long size = source.size();
+                for (long done = 0; done < size; ) {
+                    done += channel.transferFrom(source, offset + done, size - done);
+                }
+                position += size;
+            }
+            channel.position(position);
+            entries.add(new Entry(fileInfo.getPath(), fileInfo.getSize(), Util.parseHexBinary(fileInfo.getHash()), offset, position - offset));
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                long indexOffset = position;
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+                dos.writeUTF(game);
+                dos.writeInt(version);
+                dos.writeInt(from);
+                dos.writeLong(manifestOffset);
+                dos.writeLong(manifestLength);
+                dos.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    dos.writeUTF(entry.path);
+                    dos.writeLong(entry.size);
+                    dos.write(entry.hash);
+                    dos.writeLong(entry.offset);
+                    dos.writeLong(entry.length);
+                }
+                dos.writeLong(indexOffset);
+                dos.write(MAGIC);
+                dos.flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
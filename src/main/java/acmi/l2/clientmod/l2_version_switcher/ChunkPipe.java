@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Bounded single-producer, single-consumer byte pipe between two threads.
+ * Data moves in fixed-size chunks that are recycled, so a pipe never holds
+ * more than about {@code (capacity + 2) * chunkSize} bytes.
+ * <p>
+ * Either side may {@link #abort(Throwable)} the pipe, after which the other
+ * side fails with an {@link IOException} instead of blocking forever.
+ */
+public class ChunkPipe {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final Chunk EOF = new Chunk(0);
+    private static final Chunk ABORTED = new Chunk(0);
+
+    private final int chunkSize;
+    private final BlockingQueue<Chunk> full;
+    private final Queue<Chunk> free = new ConcurrentLinkedQueue<>();
+    private volatile Throwable failure;
+
+    private final InputStream in = new Input();
+    private final OutputStream out = new Output();
+
+    public ChunkPipe() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_CAPACITY);
+    }
+
+    public ChunkPipe(int chunkSize, int capacity) {
+        this.chunkSize = chunkSize;
+        this.full = new ArrayBlockingQueue<>(capacity + 1);
+    }
+
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public void abort(Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        full.clear();
+        full.offer(ABORTED);
+    }
+
+    public boolean isAborted() {
+        return failure != null;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t != null) {
+            throw t instanceof IOException ? new IOException(t.getMessage(), t) : new IOException("Pipe aborted", t);
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private class Output extends OutputStream {
+        private Chunk current;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            checkFailure();
+            while (len > 0) {
+                if (current == null) {
+                    current = free.poll();
+                    if (current == null) {
+                        current = new Chunk(chunkSize);
+                    }
+                    current.length = 0;
+                }
+                int n = Math.min(len, current.data.length - current.length);
+                System.arraycopy(b, off, current.data, current.length, n);
+                current.length += n;
+                off += n;
+                len -= n;
+                if (current.length == current.data.length) {
+                    put(current);
+                    current = null;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (current != null && current.length > 0) {
+                put(current);
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            flush();
+            put(EOF);
+            closed = true;
+        }
+
+        private void put(Chunk chunk) throws IOException {
+            try {
+                full.put(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkFailure();
+        }
+    }
+
+    private class Input extends InputStream {
+        private Chunk current;
+        private int pos;
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) {
+                return -1;
+            }
+            return current.data[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current.data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private boolean ensureData() throws IOException {
+            if (current == EOF) {
+                return false;
+            }
+            while (current == null || pos == current.length) {
+                if (current != null) {
+                    free.offer(current);
+                }
+                try {
+                    current = full.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                if (current == ABORTED) {
+                    current = null;
+                    checkFailure();
+                    throw new IOException("Pipe aborted");
+                }
+                if (current == EOF) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP access with keep-alive and a limit of concurrent connections per host.
+ * <p>
+ * Connections come from the JDK keep-alive cache, which only takes a
+ * connection back once its response body, or error body, has been read
+ * to the end. {@link Response#close()} takes care of that. The cache keeps
+ * at most {@code http.maxConnections} (5 by default) idle connections per
+ * host and reads that property once per JVM; applications using more
+ * connections per host should set it before their first request.
+ * <p>
+ * Response bodies are counted and, with a {@link RateLimiter}, throttled.
+ */
+public class ConnectionPool {
+    public static final int DEFAULT_MAX_PER_HOST = 16;
+    public static final int CONNECT_TIMEOUT = 15000;
+    public static final int READ_TIMEOUT = 60000;
+
+    private static final int MAX_DRAIN = 1 << 16;
+
+    private static volatile ConnectionPool defaultPool;
+
+    private final int maxPerHost;
+    private final RateLimiter rateLimiter;
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+    private final LongAdder bytesRead = new LongAdder();
+
+    public ConnectionPool(int maxPerHost) {
+        this(maxPerHost, null);
+    }
+
+    public ConnectionPool(int maxPerHost, RateLimiter rateLimiter) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be positive: " + maxPerHost);
+        }
+        this.maxPerHost = maxPerHost;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public static ConnectionPool getDefault() {
+        if (defaultPool == null) {
+            synchronized (ConnectionPool.class) {
+                if (defaultPool == null) {
+                    defaultPool = new ConnectionPool(DEFAULT_MAX_PER_HOST);
+                }
+            }
+        }
+        return defaultPool;
+    }
+
+    public static synchronized void setDefault(ConnectionPool pool) {
+        defaultPool = pool;
+    }
+
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Body bytes read through this pool so far.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public Response get(String url, long offset) throws IOException {
+        return open("GET", url, offset);
+    }
+
+    public Response head(String url) throws IOException {
+        return open("HEAD", url, 0);
+    }
+
+    public Response open(String method, String url, long offset) throws IOException {
+        return open(method, url, offset, -1);
+    }
+
+    /**
+     * @param last last byte to request, -1 for the rest of the body
+     */
+    public Response open(String method, String url, long offset, long last) throws IOException {
+        URL u = new URL(url);
+        Semaphore permits = hosts.computeIfAbsent(u.getAuthority(), h -> new Semaphore(maxPerHost, true));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        try {
+            HttpURLConnection connection = (HttpURLConnection) u.openConnection();
+            connection.setRequestMethod(method);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (last >= 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-" + last);
+            } else if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+            return new Response(this, connection, connection.getResponseCode(), permits);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void count(int bytes) throws IOException {
+        bytesRead.add(bytes);
+        if (rateLimiter != null) {
+            rateLimiter.acquire(bytes);
+        }
+    }
+
+    public static class Response implements Closeable {
+        private final ConnectionPool pool;
+        private final HttpURLConnection connection;
+        private final int code;
+        private final Semaphore permits;
+        private InputStream raw;
+        private InputStream body;
+        private boolean closed;
+
+        Response(ConnectionPool pool, HttpURLConnection connection, int code, Semaphore permits) {
+            this.pool = pool;
+            this.connection = connection;
+            this.code = code;
+            this.permits = permits;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public boolean isOk() {
+            return code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL;
+        }
+
+        public long getContentLength() {
+            return connection.getContentLengthLong();
+        }
+
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        /**
+         * Response body; closing it closes the response.
+         */
+        public synchronized InputStream getBody() throws IOException {
+            if (body == null) {
+                raw = connection.getInputStream();
+                body = new FilterInputStream(raw) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            pool.count(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int r = super.read(b, off, len);
+                        if (r > 0) {
+                            pool.count(r);
+                        }
+                        return r;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        Response.this.close();
+                    }
+                };
+            }
+            return body;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                InputStream is = raw;
+                if (is == null && !"HEAD".equals(connection.getRequestMethod())) {
+                    is = isOk() ? connection.getInputStream() : connection.getErrorStream();
+                }
+                if (is != null) {
+                    drain(is);
+                    is.close();
+                }
+            } catch (IOException ignore) {
+            } finally {
+                permits.release();
+            }
+        }
+
+        // small leftovers are read so the connection can be reused, big ones are cheaper to drop
+        private static void drain(InputStream is) throws IOException {
+            byte[] buf = new byte[8192];
+            int total = 0;
+            int r;
+            while (total < MAX_DRAIN && (r = is.read(buf)) >= 0) {
+                total += r;
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs download tasks largest first with an AIMD concurrency limit: while
+ * throughput keeps growing the limit goes up by one every
+ * {@link #SAMPLE_INTERVAL} ms, and every failed transfer halves it.
+ * <p>
+ * Per-host limits and bandwidth caps are up to the {@link ConnectionPool}
+ * the tasks use. Tasks run on virtual threads when the runtime has them.
+ * A scheduler runs a single batch.
+ */
+public class DownloadScheduler {
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+    public static final int INITIAL_CONCURRENCY = 4;
+    public static final long SAMPLE_INTERVAL = 2000;
+
+    private static final double GROWTH_THRESHOLD = 1.05;
+
+    private final int maxConcurrency;
+    private final LongSupplier bytesTransferred;
+    private final ExecutorService executor;
+
+    private int limit;
+    private boolean cancelled;
+    private int active;
+    private int queued;
+    private long sampleStart;
+    private long sampleBytes;
+    private double bestRate;
+
+    /**
+     * @param bytesTransferred running total of transferred bytes, e.g.
+     *                         {@link ConnectionPool#getBytesRead()}
+     */
+    public DownloadScheduler(int maxConcurrency, LongSupplier bytesTransferred) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.bytesTransferred = bytesTransferred;
+        this.limit = Math.min(INITIAL_CONCURRENCY, maxConcurrency);
+        this.executor = newTaskExecutor();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    /**
+     * Number of tasks not started yet.
+     */
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Stops starting tasks. Running ones finish, then the future returned by
+     * {@link #run} fails with a {@link CancellationException}.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Runs {@code task} for every item, largest first. An {@link IOException}
+     * thrown by a task counts as congestion; tasks should handle other I/O
+     * errors themselves. Any other exception is a bug: the remaining items
+     * still run, then the returned future fails with it.
+     */
+    public <T> CompletableFuture<Void> run(List<T> items, ToLongFunction<T> size, Task<T> task) {
+        List<T> queue = new ArrayList<>(items);
+        queue.sort(Comparator.comparingLong(size).reversed());
+
+        synchronized (this) {
+            queued = queue.size();
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Thread dispatcher = Util.daemonThreadFactory("scheduler").newThread(() -> {
+            try {
+                List<CompletableFuture<Void>> tasks = new ArrayList<>(queue.size());
+                synchronized (this) {
+                    sampleStart = System.currentTimeMillis();
+                    sampleBytes = bytesTransferred.getAsLong();
+                }
+                for (T item : queue) {
+                    if (!acquireSlot()) {
+                        break;
+                    }
+                    tasks.add(CompletableFuture.runAsync(() -> {
+                        boolean failed = false;
+                        try {
+                            task.run(item);
+                        } catch (IOException e) {
+                            failed = true;
+                        } finally {
+                            releaseSlot(failed);
+                        }
+                    }, executor));
+                }
+                CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+                synchronized (this) {
+                    if (cancelled) {
+                        throw new CancellationException();
+                    }
+                }
+                done.complete(null);
+            } catch (Throwable t) {
+                done.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            } finally {
+                executor.shutdown();
+            }
+        });
+        dispatcher.start();
+        return done;
+    }
+
+    /**
+     * @return {@code false} if cancelled
+     */
+    private synchronized boolean acquireSlot() throws InterruptedException {
+        while (active >= limit && !cancelled) {
+            wait(SAMPLE_INTERVAL);
+            sample();
+        }
+        if (cancelled) {
+            return false;
+        }
+        active++;
+        queued--;
+        return true;
+    }
+
+    private synchronized void releaseSlot(boolean failed) {
+        if (failed) {
+            limit = Math.max(1, limit / 2);
+            bestRate = 0;
+        } else {
+            sample();
+        }
+        active--;
+        notifyAll();
+    }
+
+    private void sample() {
+        long now = System.currentTimeMillis();
+        if (now - sampleStart < SAMPLE_INTERVAL) {
+            return;
+        }
+        long bytes = bytesTransferred.getAsLong();
+        double rate = (bytes - sampleBytes) * 1000.0 / (now - sampleStart);
+        sampleStart = now;
+        sampleBytes = bytes;
+
+        // only probe upwards while the current limit is actually in use
+        if (rate >= bestRate * GROWTH_THRESHOLD && active >= limit && limit < maxConcurrency) {
+            limit++;
+        }
+        bestRate = Math.max(bestRate, rate);
+    }
+
+    private static ExecutorService newTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(Util.daemonThreadFactory("download"));
+        }
+    }
+
+    @FunctionalInterface
+    public interface Task<T> {
+        void run(T item) throws IOException;
+    }
+}
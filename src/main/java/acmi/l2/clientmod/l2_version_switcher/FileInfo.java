@@ -21,14 +21,12 @@
  */
 package acmi.l2.clientmod.l2_version_switcher;
 
-import java.util.StringTokenizer;
-
 public class FileInfo {
     private String path;
-    private int size;
+    private long size;
     private String hash;
 
-    public FileInfo(String path, int size, String hash) {
+    public FileInfo(String path, long size, String hash) {
         this.path = path;
         this.size = size;
         this.hash = hash;
@@ -38,7 +36,7 @@ public class FileInfo {
         return path;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
@@ -51,7 +49,14 @@ public class FileInfo {
     }
 
     public static FileInfo parse(String line) {
-        StringTokenizer st = new StringTokenizer(line, ":");
-        return new FileInfo(st.nextToken(), Integer.parseInt(st.nextToken()), st.nextToken());
+        int pathEnd = line.indexOf(':');
+        int sizeEnd = line.indexOf(':', pathEnd + 1);
+        int hashEnd = line.indexOf(':', sizeEnd + 1);
+        if (pathEnd < 0 || sizeEnd < 0) {
+            throw new IllegalArgumentException("Malformed FileInfo: " + line);
+        }
+        return new FileInfo(line.substring(0, pathEnd),
+                Long.parseLong(line.substring(pathEnd + 1, sizeEnd)),
+                line.substring(sizeEnd + 1, hashEnd < 0 ? line.length() : hashEnd));
     }
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Columnar, read-only form of a FileInfoMap manifest.
+ * <p>
+ * Entries are addressed by index. Directory prefixes are shared, file names
+ * live in one {@code char[]}, hashes in one {@code byte[]} (20 bytes per
+ * entry) and sizes in a {@code long[]}, so no objects are kept per entry.
+ */
+public class FileInfoMap {
+    public static final int HASH_LENGTH = 20;
+
+    private final String[] dirs;
+    private final int[] dirIndex;
+    private final char[] names;
+    private final int[] nameOffsets;
+    private final long[] sizes;
+    private final byte[] hashes;
+    private final int size;
+    private final int[] table;
+
+    private FileInfoMap(Builder builder) {
+        this.dirs = builder.dirs.toArray(new String[builder.dirs.size()]);
+        this.size = builder.size;
+        this.dirIndex = Arrays.copyOf(builder.dirIndex, size);
+        this.names = Arrays.copyOf(builder.names, builder.namesLength);
+        this.nameOffsets = Arrays.copyOf(builder.nameOffsets, size + 1);
+        this.sizes = Arrays.copyOf(builder.sizes, size);
+        this.hashes = Arrays.copyOf(builder.hashes, size * HASH_LENGTH);
+
+        this.table = new int[Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1];
+        for (int i = 0; i < size; i++) {
+            int mask = table.length - 1;
+            int slot = hashCode(i) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getPath(int i) {
+        String dir = dirs[dirIndex[i]];
+        int from = nameOffsets[i];
+        int to = nameOffsets[i + 1];
+        return new StringBuilder(dir.length() + to - from)
+                .append(dir)
+                .append(names, from, to - from)
+                .toString();
+    }
+
+    public long getSize(int i) {
+        return sizes[i];
+    }
+
+    public byte[] getHash(int i) {
+        return Arrays.copyOfRange(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH);
+    }
+
+    public String getHashString(int i) {
+        StringBuilder sb = new StringBuilder(HASH_LENGTH * 2);
+        for (int j = i * HASH_LENGTH; j < (i + 1) * HASH_LENGTH; j++) {
+            sb.append(Character.forDigit((hashes[j] >> 4) & 0xf, 16))
+                    .append(Character.forDigit(hashes[j] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public boolean hashEquals(int i, byte[] hash) {
+        return hash.length == HASH_LENGTH && hashEquals(i, hash, 0);
+    }
+
+    private boolean hashEquals(int i, byte[] hash, int hashOffset) {
+        int offset = i * HASH_LENGTH;
+        for (int j = 0; j < HASH_LENGTH; j++) {
+            if (hashes[offset + j] != hash[hashOffset + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public FileInfo get(int i) {
+        return new FileInfo(getPath(i), getSize(i), getHashString(i));
+    }
+
+    public int indexOf(String path) {
+        int mask = table.length - 1;
+        int slot = path.hashCode() & mask;
+        int e;
+        while ((e = table[slot]) != 0) {
+            if (pathEquals(e - 1, path)) {
+                return e - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean contains(String path) {
+        return indexOf(path) >= 0;
+    }
+
+    /**
+     * Indices of entries that are new or have a different size or hash
+     * compared to {@code from}.
+     */
+    public IntStream changedSince(FileInfoMap from) {
+        return indices().filter(i -> {
+            int j = from.indexOf(getPath(i));
+            return j < 0 || from.sizes[j] != sizes[i] || !from.hashEquals(j, hashes, i * HASH_LENGTH);
+        });
+    }
+
+    /**
+     * Indices of entries that have no entry with the same path in {@code to}.
+     */
+    public IntStream removedIn(FileInfoMap to) {
+        return indices().filter(i -> !to.contains(getPath(i)));
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(i);
+        }
+    }
+
+    public IntStream indices() {
+        return IntStream.range(0, size);
+    }
+
+    public List<FileInfo> toList() {
+        return indices().mapToObj(this::get).collect(Collectors.toList());
+    }
+
+    private int hashCode(int i) {
+        int h = dirs[dirIndex[i]].hashCode();
+        for (int j = nameOffsets[i]; j < nameOffsets[i + 1]; j++) {
+            h = 31 * h + names[j];
+        }
+        return h;
+    }
+
+    private boolean pathEquals(int i, String path) {
+        String dir = dirs[dirIndex[i]];
+        int from = nameOffsets[i];
+        int nameLength = nameOffsets[i + 1] - from;
+        if (path.length() != dir.length() + nameLength || !path.startsWith(dir)) {
+            return false;
+        }
+        for (int j = 0; j < nameLength; j++) {
+            if (path.charAt(dir.length() + j) != names[from + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses decompressed FileInfoMap data: UTF-16 text (BOM optional, big
+     * endian by default) with one {@code path:size:hash:flags} line per file.
+     * The text is decoded char by char; no per-line strings are created.
+     */
+    public static FileInfoMap read(InputStream is) throws IOException {
+        Builder builder = new Builder();
+        char[] line = new char[256];
+        int lineLength = 0;
+        int lineNumber = 1;
+
+        byte[] buf = new byte[1 << 16];
+        boolean bigEndian = true;
+        boolean first = true;
+        int pending = -1;
+        int r;
+        while ((r = is.read(buf)) >= 0) {
+            for (int i = 0; i < r; i++) {
+                if (pending < 0) {
+                    pending = buf[i] & 0xff;
+                    continue;
+                }
+                char c = bigEndian ?
+                        (char) ((pending << 8) | (buf[i] & 0xff)) :
+                        (char) (((buf[i] & 0xff) << 8) | pending);
+                pending = -1;
+
+                if (first) {
+                    first = false;
+                    if (c == '\uFEFF') {
+                        continue;
+                    } else if (c == '\uFFFE') {
+                        bigEndian = false;
+                        continue;
+                    }
+                }
+
+                if (c == '\n') {
+                    builder.addLine(line, lineLength, lineNumber++);
+                    lineLength = 0;
+                } else if (c != '\r') {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = c;
+                }
+            }
+        }
+        builder.addLine(line, lineLength, lineNumber);
+
+        return new FileInfoMap(builder);
+    }
+
+    private static class Builder {
+        private final List<String> dirs = new ArrayList<>();
+        private final Map<String, Integer> dirLookup = new HashMap<>();
+
+        private int size;
+        private int[] dirIndex = new int[1024];
+        private char[] names = new char[1 << 15];
+        private int namesLength;
+        private int[] nameOffsets = new int[1025];
+        private long[] sizes = new long[1024];
+        private byte[] hashes = new byte[1024 * HASH_LENGTH];
+
+        void addLine(char[] line, int length, int lineNumber) throws IOException {
+            if (length == 0) {
+                return;
+            }
+
+            int pathEnd = indexOf(line, 0, length, ':');
+            int sizeEnd = indexOf(line, pathEnd + 1, length, ':');
+            if (pathEnd <= 0 || sizeEnd < 0) {
+                throw malformed(line, length, lineNumber);
+            }
+            int hashEnd = indexOf(line, sizeEnd + 1, length, ':');
+            if (hashEnd < 0) {
+                hashEnd = length;
+            }
+            if (hashEnd - sizeEnd - 1 != HASH_LENGTH * 2 || sizeEnd == pathEnd + 1) {
+                throw malformed(line, length, lineNumber);
+            }
+
+            ensureCapacity(size + 1);
+
+            int nameStart = 0;
+            for (int i = pathEnd - 1; i >= 0; i--) {
+                if (line[i] == '\\' || line[i] == '/') {
+                    nameStart = i + 1;
+                    break;
+                }
+            }
+            String dir = new String(line, 0, nameStart);
+            Integer d = dirLookup.get(dir);
+            if (d == null) {
+                d = dirs.size();
+                dirs.add(dir);
+                dirLookup.put(dir, d);
+            }
+            dirIndex[size] = d;
+
+            int nameLength = pathEnd - nameStart;
+            if (namesLength + nameLength > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + nameLength));
+            }
+            System.arraycopy(line, nameStart, names, namesLength, nameLength);
+            namesLength += nameLength;
+            nameOffsets[size + 1] = namesLength;
+
+            long fileSize = 0;
+            for (int i = pathEnd + 1; i < sizeEnd; i++) {
+                char c = line[i];
+                if (c < '0' || c > '9') {
+                    throw malformed(line, length, lineNumber);
+                }
+                fileSize = fileSize * 10 + (c - '0');
+            }
+            sizes[size] = fileSize;
+
+            int offset = size * HASH_LENGTH;
+            for (int i = sizeEnd + 1; i < hashEnd; i += 2) {
+                int h = Character.digit(line[i], 16);
+                int l = Character.digit(line[i + 1], 16);
+                if (h < 0 || l < 0) {
+                    throw malformed(line, length, lineNumber);
+                }
+                hashes[offset++] = (byte) ((h << 4) | l);
+            }
+
+            size++;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= sizes.length) {
+                return;
+            }
+            int newCapacity = sizes.length * 2;
+            dirIndex = Arrays.copyOf(dirIndex, newCapacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, newCapacity + 1);
+            sizes = Arrays.copyOf(sizes, newCapacity);
+            hashes = Arrays.copyOf(hashes, newCapacity * HASH_LENGTH);
+        }
+
+        private static int indexOf(char[] line, int from, int to, char c) {
+            for (int i = from; i < to; i++) {
+                if (line[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static IOException malformed(char[] line, int length, int lineNumber) {
+            return new IOException("Malformed FileInfoMap line " + lineNumber + ": " + new String(line, 0, length));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Downloads one file into its {@link PartialDownload} files on the calling
+ * thread, then decodes them through two overlapping stages connected by a
+ * {@link ChunkPipe}: LZMA decoding with on-the-fly SHA-1, and disk write
+ * into {@code <file>.tmp}. Decoding starts once the fetch is complete, so a
+ * connection never waits for a decode thread. The temp file replaces the
+ * target only if its hash matches the manifest.
+ */
+public class FileUpdate {
+    private final Helper helper;
+    private final FileInfo fileInfo;
+    private final File target;
+    private final Executor decodeExecutor;
+    private final Executor writeExecutor;
+    private final Metrics metrics;
+
+    public FileUpdate(Helper helper, FileInfo fileInfo, File target, Executor decodeExecutor, Executor writeExecutor) {
+        this(helper, fileInfo, target, decodeExecutor, writeExecutor, null);
+    }
+
+    public FileUpdate(Helper helper, FileInfo fileInfo, File target, Executor decodeExecutor, Executor writeExecutor, Metrics metrics) {
+        this.helper = helper;
+        this.fileInfo = fileInfo;
+        this.target = target;
+        this.decodeExecutor = decodeExecutor;
+        this.writeExecutor = writeExecutor;
+        this.metrics = metrics;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * @throws FetchException if the transfer failed; the partial download is
+     *                        kept for the next attempt
+     * @throws IOException    if the data was bad or couldn't be written; the
+     *                        partial download is discarded
+     */
+    public void run() throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        PartialDownload download = new PartialDownload(helper, fileInfo.getPath(), target);
+        try {
+            download.fetch();
+        } catch (IOException e) {
+            throw new FetchException(e);
+        } finally {
+            if (metrics != null && download.isResumed()) {
+                metrics.downloadResumed();
+            }
+        }
+
+        ChunkPipe decompressed = new ChunkPipe();
+        MessageDigest md = HashEngine.sha1();
+
+        CompletableFuture<Void> decode = CompletableFuture.runAsync(() -> {
+            try (InputStream input = Util.getUnzipStream(new BufferedInputStream(download.openStream(), ChunkPipe.DEFAULT_CHUNK_SIZE));
+                 OutputStream output = new DigestOutputStream(decompressed.getOutputStream(), md)) {
+                IOUtils.copyLarge(input, output, new byte[ChunkPipe.DEFAULT_CHUNK_SIZE]);
+            } catch (Throwable t) {
+                decompressed.abort(t);
+                throw new CompletionException(t);
+            }
+        }, decodeExecutor);
+        CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+            try (InputStream input = decompressed.getInputStream();
+                 OutputStream output = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[ChunkPipe.DEFAULT_CHUNK_SIZE];
+                int r;
+                while ((r = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, r);
+                    if (metrics != null) {
+                        metrics.decompressed(r);
+                    }
+                }
+            } catch (Throwable t) {
+                decompressed.abort(t);
+                throw new CompletionException(t);
+            }
+        }, writeExecutor);
+
+        Throwable stageFailure = null;
+        try {
+            CompletableFuture.allOf(decode, write).join();
+        } catch (CompletionException e) {
+            stageFailure = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+        }
+
+        download.delete();
+        if (stageFailure != null) {
+            tmp.delete();
+            throw stageFailure instanceof IOException ? (IOException) stageFailure : new IOException(stageFailure);
+        }
+
+        commit(tmp, md.digest(), fileInfo, target);
+    }
+
+    /**
+     * Decodes a payload that is already local, e.g. from a {@link Bundle},
+     * with the same hash check and replace as {@link #run()}.
+     */
+    public static void apply(InputStream compressed, FileInfo fileInfo, File target, Metrics metrics) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        MessageDigest md = HashEngine.sha1();
+        try (InputStream input = Util.getUnzipStream(compressed);
+             OutputStream output = new DigestOutputStream(new FileOutputStream(tmp), md)) {
+            byte[] buffer = new byte[ChunkPipe.DEFAULT_CHUNK_SIZE];
+            int r;
+            while ((r = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, r);
+                if (metrics != null) {
+                    metrics.decompressed(r);
+                }
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        commit(tmp, md.digest(), fileInfo, target);
+    }
+
+    private static void commit(File tmp, byte[] hash, FileInfo fileInfo, File target) throws IOException {
+        if (!Arrays.equals(hash, Util.parseHexBinary(fileInfo.getHash()))) {
+            tmp.delete();
+            throw new IOException("hash mismatch");
+        }
+
+        Util.move(tmp.toPath(), target.toPath());
+    }
+
+    public static class FetchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FetchException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SHA-1 hashing with its own I/O thread pool. Files are read through a
+ * {@link FileChannel} into a fixed per-thread direct buffer, so memory use
+ * depends on the number of threads, not on file sizes.
+ * <p>
+ * One or two threads suit a HDD, NVMe drives need considerably more.
+ */
+public class HashEngine implements AutoCloseable {
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final int SAMPLE_BLOCK_SIZE = 1 << 16;
+    public static final int SAMPLE_INTERIOR_BLOCKS = 6;
+
+    private final ExecutorService executor;
+    private final ThreadLocal<ByteBuffer> buffers;
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(HashEngine::sha1);
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final long startTime = System.nanoTime();
+
+    public HashEngine() {
+        this(DEFAULT_THREADS, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HashEngine(int threads, int bufferSize) {
+        this(newExecutor(threads), bufferSize);
+    }
+
+    /**
+     * @param executor runs file reads; its size is the number of files read
+     *                 at once. Shut down by {@link #close()}.
+     */
+    public HashEngine(ExecutorService executor, int bufferSize) {
+        this.executor = executor;
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        return Executors.newFixedThreadPool(threads, Util.daemonThreadFactory("hash"));
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public byte[] hash(File file) throws IOException {
+        MessageDigest md = digests.get();
+        ByteBuffer buffer = buffers.get();
+        md.reset();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                int r = channel.read(buffer);
+                if (r < 0) {
+                    break;
+                }
+                buffer.flip();
+                md.update(buffer);
+                bytes.addAndGet(r);
+            }
+        }
+        files.incrementAndGet();
+        return md.digest();
+    }
+
+    /**
+     * SHA-1 over the first and last {@link #SAMPLE_BLOCK_SIZE} bytes and
+     * {@link #SAMPLE_INTERIOR_BLOCKS} blocks in between. Interior offsets are
+     * derived from {@code seed}, so the same file and seed always give the
+     * same fingerprint.
+     *
+     * @return {@code null} if the file is too small to be sampled; its full
+     * hash is as cheap
+     */
+    public byte[] sample(File file, byte[] seed) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_BLOCK_SIZE);
+        MessageDigest md = digests.get();
+        md.reset();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (!isSampled(size)) {
+                return null;
+            }
+            Random random = new Random(seed.length >= 8 ? ByteBuffer.wrap(seed).getLong() : 0);
+            long interior = size - 2L * SAMPLE_BLOCK_SIZE;
+            long[] offsets = new long[SAMPLE_INTERIOR_BLOCKS + 2];
+            offsets[0] = 0;
+            offsets[1] = size - SAMPLE_BLOCK_SIZE;
+            for (int i = 2; i < offsets.length; i++) {
+                offsets[i] = SAMPLE_BLOCK_SIZE + (random.nextLong() >>> 1) % (interior - SAMPLE_BLOCK_SIZE);
+            }
+            for (long offset : offsets) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    int r = channel.read(buffer, offset + buffer.position());
+                    if (r < 0) {
+                        throw new IOException(file + " changed while sampling");
+                    }
+                    bytes.addAndGet(r);
+                }
+                buffer.flip();
+                md.update(buffer);
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Whether files of this size are {@link #sample sampled} rather than
+     * hashed whole.
+     */
+    public static boolean isSampled(long size) {
+        return size > (long) SAMPLE_BLOCK_SIZE * (SAMPLE_INTERIOR_BLOCKS + 2);
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public double getMegabytesPerSecond() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? bytes.get() / (1024.0 * 1024.0) / seconds : 0;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("sha-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
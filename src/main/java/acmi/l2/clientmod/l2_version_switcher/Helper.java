@@ -21,21 +21,35 @@
  */
 package acmi.l2.clientmod.l2_version_switcher;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Helper {
+    public static final int DEFAULT_PREFETCH_PARTS = 4;
+
+    static final ExecutorService PART_EXECUTOR = Executors.newCachedThreadPool(Util.daemonThreadFactory("part"));
+
     private String host;
     private String game;
     private int version;
+    private ConnectionPool pool;
+    private final Map<String, Boolean> split = new ConcurrentHashMap<>();
 
     public Helper(String host, String game, int version) {
+        this(host, game, version, ConnectionPool.getDefault());
+    }
+
+    public Helper(String host, String game, int version, ConnectionPool pool) {
         this.host = host;
         this.game = game;
         this.version = version;
+        this.pool = pool;
     }
 
     public String getHost() {
@@ -50,6 +64,10 @@ public class Helper {
         return version;
     }
 
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
     public String getBaseUrl() {
         return String.format("http://%s/%s/%d/Patch", host, game, version);
     }
@@ -63,67 +81,51 @@ public class Helper {
     }
 
     public boolean isAvailable() throws IOException {
-        URL url = new URL(this.getFileInfoMapZipUrl());
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        return connection.getResponseCode() == 200;
+        try (ConnectionPool.Response response = pool.head(getFileInfoMapZipUrl())) {
+            if (response.getCode() != HttpURLConnection.HTTP_BAD_METHOD && response.getCode() != HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                return response.getCode() == HttpURLConnection.HTTP_OK;
+            }
+        }
+        // servers without HEAD get asked for the first byte only
+        try (ConnectionPool.Response response = pool.open("GET", getFileInfoMapZipUrl(), 0, 0)) {
+            return response.isOk();
+        }
     }
 
     public List<FileInfo> getFileInfoList() throws IOException {
-        URL url = new URL(getFileInfoMapZipUrl());
-        try (InputStream is = url.openConnection().getInputStream()) {
-            return Util.getFileInfo(Util.getUnzipStream(is));
-        }
+        return getFileInfoMap().toList();
     }
 
-    public InputStream getDownloadStream(String path) throws IOException {
-        path = path.replaceAll("\\\\", "/");
-        String s = String.format("%s/Zip/%s.zip", getBaseUrl(), path);
-        URL url = new URL(s);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        return connection.getResponseCode() == 200 ? connection.getInputStream() : new PartsInputStream(path);
+    public FileInfoMap getFileInfoMap() throws IOException {
+        try (ConnectionPool.Response response = pool.get(getFileInfoMapZipUrl(), 0)) {
+            if (!response.isOk()) {
+                throw new IOException("Server returned error: " + response.getCode());
+            }
+            return FileInfoMap.read(Util.getUnzipStream(new BufferedInputStream(response.getBody())));
+        }
     }
 
-    private class PartsInputStream extends InputStream {
-        private String path;
-        private int part;
-        private InputStream current;
-
-        PartsInputStream(String path) throws IOException {
-            this.path = path;
-            this.current = nextStream();
-        }
+    public String getZipUrl(String path) {
+        return String.format("%s/Zip/%s.zip", getBaseUrl(), path.replace('\\', '/'));
+    }
 
-        public int read() throws IOException {
-            int b;
-            if ((b = current.read()) == -1) {
-                closeCurrentStream();
-                current = nextStream();
-                return read();
-            } else {
-                return b;
-            }
-        }
+    public String getPartUrl(String path, int part) {
+        return String.format("%s/Zip/%s.z%02d", getBaseUrl(), path.replace('\\', '/'), part);
+    }
 
-        private InputStream nextStream() throws IOException {
-            String s = String.format("%s/Zip/%s.z%02d", getBaseUrl(), path, ++part);
-            URL url = new URL(s);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            if (connection.getResponseCode() == 200) {
-                return connection.getInputStream();
-            } else {
-                throw new IOException("Server returned error: " + connection.getResponseCode());
-            }
-        }
+    public ConnectionPool.Response open(String url, long offset) throws IOException {
+        return pool.get(url, offset);
+    }
 
-        private void closeCurrentStream() {
-            try {
-                current.close();
-            } catch (IOException ignore) {
-            }
-        }
+    /**
+     * Whether {@code path} is known to be stored as {@code .zNN} parts,
+     * {@code null} if it hasn't been requested yet by this helper.
+     */
+    public Boolean isSplit(String path) {
+        return split.get(path);
+    }
 
-        public void close() throws IOException {
-            current.close();
-        }
+    public void setSplit(String path, boolean value) {
+        split.put(path, value);
     }
 }
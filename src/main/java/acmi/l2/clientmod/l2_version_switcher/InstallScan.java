@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Attributes of the files of an install, read in one
+ * {@link Files#walkFileTree directory walk} so the pre-check before hashing
+ * costs a directory listing rather than a stat per manifest entry, in
+ * directory order.
+ * <p>
+ * When only a small part of the manifest is checked (e.g. {@code --from})
+ * the walk would read more than it saves, and attributes are read per file
+ * instead. Either way lookups ignore case only if the install's file system
+ * does, so a walked path matches exactly what a per file lookup would find.
+ */
+public class InstallScan {
+    /**
+     * Walk when at least one in this many manifest files is checked.
+     */
+    public static final int WALK_RATIO = 16;
+
+    private final File dir;
+    private final Map<String, BasicFileAttributes> files;
+    private final boolean ignoreCase;
+
+    private InstallScan(File dir, Map<String, BasicFileAttributes> files, boolean ignoreCase) {
+        this.dir = dir;
+        this.files = files;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * @param prefix manifest path prefix all checked files share, e.g. the
+     *               directory part of the filter, {@code ""} for all
+     */
+    public static InstallScan scan(File dir, String prefix, int checked, int total) throws IOException {
+        if ((long) checked * WALK_RATIO < total) {
+            return new InstallScan(dir, null, false);
+        }
+
+        Map<String, BasicFileAttributes> files = new HashMap<>();
+        Path root = dir.toPath();
+        boolean ignoreCase = isCaseInsensitive(root);
+        Path start = prefix.isEmpty() ? root : root.resolve(prefix.replace('\\', File.separatorChar));
+        if (!Files.isDirectory(start)) {
+            // the filter may differ in case from a directory on a case sensitive file system
+            start = root;
+        }
+        if (Files.isDirectory(start)) {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    files.put(key(root.relativize(file).toString(), ignoreCase), attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // left out, checked like a missing file; also symlink cycles
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return new InstallScan(dir, files, ignoreCase);
+    }
+
+    /**
+     * @return {@code null} if there is no such file
+     */
+    public BasicFileAttributes get(String path) throws IOException {
+        if (files != null) {
+            return files.get(key(path, ignoreCase));
+        }
+        try {
+            return Files.readAttributes(new File(dir, path.replace('\\', File.separatorChar)).toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Directory part of {@code filter} before any wildcard, as a manifest
+     * path prefix.
+     */
+    public static String prefix(String filter) {
+        if (filter == null) {
+            return "";
+        }
+        String s = filter.replace('/', '\\');
+        int wildcard = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '*' || s.charAt(i) == '?') {
+                wildcard = i;
+                break;
+            }
+        }
+        return s.substring(0, s.lastIndexOf('\\', wildcard - 1) + 1);
+    }
+
+    /**
+     * Whether {@code root} is on a file system that ignores case, judged by
+     * looking up one of its entries with the case of its name swapped.
+     */
+    static boolean isCaseInsensitive(Path root) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                String swapped = swapCase(name);
+                if (!swapped.equals(name)) {
+                    Path other = root.resolve(swapped);
+                    return Files.exists(other, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(entry, other);
+                }
+            }
+        } catch (NotDirectoryException | NoSuchFileException e) {
+            // nothing to look up
+        }
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        return os.startsWith("windows") || os.startsWith("mac");
+    }
+
+    private static String swapCase(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+
+    private static String key(String path, boolean ignoreCase) {
+        String key = path.replace(File.separatorChar, '\\').replace('/', '\\');
+        return ignoreCase ? key.toLowerCase(Locale.ROOT) : key;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.apache.commons.io.FilenameUtils.separatorsToSystem;
+
+/**
+ * One client directory being updated, with its own verification index
+ * and report.
+ */
+public class InstallTarget {
+    private final File dir;
+    private final boolean qualified;
+    private final VerificationIndex index;
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder outdated = new LongAdder();
+    private final LongAdder updated = new LongAdder();
+    private final LongAdder linked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param qualified whether messages should name the directory, i.e.
+     *                  more than one target is being updated
+     */
+    public InstallTarget(File dir, boolean rehash, boolean qualified) {
+        this.dir = dir;
+        this.qualified = qualified;
+
+        File indexFile = new File(dir, VerificationIndex.FILE_NAME);
+        VerificationIndex index;
+        try {
+            index = rehash ? VerificationIndex.empty(indexFile) : VerificationIndex.load(indexFile);
+        } catch (IOException e) {
+            errors.add("Couldn't load " + indexFile + ": " + e);
+            index = VerificationIndex.empty(indexFile);
+        }
+        this.index = index;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public VerificationIndex getIndex() {
+        return index;
+    }
+
+    public File getFile(String path) {
+        return new File(dir, separatorsToSystem(path));
+    }
+
+    /**
+     * @return {@code path} as shown in messages
+     */
+    public String describe(String path) {
+        return qualified ? getFile(path).getPath() : separatorsToSystem(path);
+    }
+
+    public void checked(boolean needUpdate) {
+        checked.increment();
+        if (needUpdate) {
+            outdated.increment();
+        }
+    }
+
+    public void updated(boolean linked) {
+        updated.increment();
+        if (linked) {
+            this.linked.increment();
+        }
+    }
+
+    public void failed(String message) {
+        failed.increment();
+        errors.add(message);
+    }
+
+    public void error(String message) {
+        errors.add(message);
+    }
+
+    public List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    public void saveIndex() {
+        try {
+            index.save();
+        } catch (IOException e) {
+            errors.add("Couldn't save " + index.getFile() + ": " + e);
+        }
+    }
+
+    /**
+     * @return e.g. {@code "C:\L2: 3000 checked, 12 outdated, 11 updated (11 linked), 1 failed"}
+     */
+    public String summary() {
+        return String.format("%s: %d checked, %d outdated, %d updated (%d linked), %d failed",
+                dir, checked.sum(), outdated.sum(), updated.sum(), linked.sum(), failed.sum());
+    }
+}
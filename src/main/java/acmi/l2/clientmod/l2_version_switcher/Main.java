@@ -21,189 +21,416 @@
  */
 package acmi.l2.clientmod.l2_version_switcher;
 
-import org.apache.commons.io.IOCase;
-
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.io.FilenameUtils.separatorsToSystem;
-import static org.apache.commons.io.FilenameUtils.wildcardMatch;
 
 public class Main {
     public static void main(String[] args) {
-        if (args.length != 3 && args.length != 4) {
-            System.out.println("USAGE: l2_version_switcher.jar host game version <--splash> <filter>");
+        List<String> argsList = new ArrayList<>(Arrays.asList(args));
+        boolean splash = argsList.remove("--splash");
+        boolean rehash = argsList.remove("--rehash");
+        boolean deleteRemoved = argsList.remove("--delete-removed");
+        boolean verbose = argsList.remove("--verbose");
+        boolean scan = argsList.remove("--scan");
+        int ioThreads = Integer.parseInt(option(argsList, "--io-threads", String.valueOf(HashEngine.DEFAULT_THREADS)));
+        String from = option(argsList, "--from", null);
+        String storeDir = option(argsList, "--store", null);
+        String storeSize = option(argsList, "--store-size", null);
+        int maxConcurrency = Integer.parseInt(option(argsList, "--max-concurrency", String.valueOf(DownloadScheduler.DEFAULT_MAX_CONCURRENCY)));
+        String rateLimit = option(argsList, "--rate-limit", null);
+        String metricsFile = option(argsList, "--metrics", null);
+        String targets = option(argsList, "--targets", null);
+        VerifyTier verifyMode = VerifyTier.parse(option(argsList, "--verify", VerifyTier.FULL.toString()));
+        String mirrorPort = option(argsList, "--mirror", null);
+        String mirrorDir = option(argsList, "--mirror-dir", MirrorServer.DEFAULT_DIR);
+        String exportFile = option(argsList, "--export", null);
+        String importFile = option(argsList, "--import", null);
+        int decodeThreads = Integer.parseInt(option(argsList, "--decode-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        // read once by the JDK keep-alive cache, before the first request
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(maxConcurrency));
+        }
+
+        if (mirrorPort != null && argsList.size() == 1) {
+            ConnectionPool pool = new ConnectionPool(maxConcurrency, rateLimit != null ? new RateLimiter(Util.parseSize(rateLimit)) : null);
+            mirror(argsList.get(0), Integer.parseInt(mirrorPort), new File(mirrorDir), pool, verbose);
+            return;
+        }
+
+        if (scan && (argsList.size() == 2 || argsList.size() == 3)) {
+            ConnectionPool pool = new ConnectionPool(maxConcurrency, rateLimit != null ? new RateLimiter(Util.parseSize(rateLimit)) : null);
+            scan(argsList.get(0), argsList.get(1), argsList.size() > 2 ? argsList.get(2) : null, pool);
+            return;
+        }
+
+        int positional = importFile != null ? 0 : 3;
+        if (argsList.size() != positional && argsList.size() != positional + 1) {
+            System.out.println("USAGE: l2_version_switcher.jar host game version <--splash> <--rehash> <--verify=mode> <--io-threads=N> <--from=version> <--delete-removed> <--store=dir> <--store-size=size> <--max-concurrency=N> <--decode-threads=N> <--rate-limit=size> <--verbose> <--metrics=file> <--targets=dirs> <filter>");
+            System.out.println("       l2_version_switcher.jar --mirror=port upstream-host <--mirror-dir=dir> <--max-concurrency=N> <--rate-limit=size> <--verbose>");
+            System.out.println("       l2_version_switcher.jar --import=bundle <options> <filter>");
+            System.out.println("       l2_version_switcher.jar --scan host game <version|from-to> <--max-concurrency=N>");
             System.out.println("EXAMPLE: l2_version_switcher.jar " + L2.NCWEST_HOST + " " + L2.NCWEST_GAME + " 1 \"system\\*\"");
             System.out.println("         l2_version_switcher.jar " + L2.PLAYNC_TEST_HOST + " " + L2.PLAYNC_TEST_GAME + " 48");
+            System.out.println("OPTIONS: --rehash        ignore " + VerificationIndex.FILE_NAME + " and hash every file again");
+            System.out.println("         --verify=M      quick: size only, sampled: head, tail and some blocks in between, full: SHA-1 (default)");
+            System.out.println("         --io-threads=N  concurrent file reads while verifying, 1-2 for HDD, 8+ for NVMe (default " + HashEngine.DEFAULT_THREADS + ")");
+            System.out.println("         --from=N        install is at version N, only check files changed since N");
+            System.out.println("         --delete-removed  with --from, delete files that version N has and this version doesn't");
+            System.out.println("         --store=dir     share downloaded files between versions in a local store");
+            System.out.println("         --store-size=S  evict least recently used store objects above S (e.g. 50G)");
+            System.out.println("         --max-concurrency=N  upper bound for parallel downloads, also per host (default " + DownloadScheduler.DEFAULT_MAX_CONCURRENCY + ")");
+            System.out.println("         --decode-threads=N  files LZMA-decoded at once, independent of downloads (default: number of cores)");
+            System.out.println("         --rate-limit=S  cap total download speed at S bytes per second (e.g. 2M)");
+            System.out.println("         --verbose       print a line for every checked and updated file");
+            System.out.println("         --metrics=file  write rates, counters and latency histograms as JSON");
+            System.out.println("         --targets=dirs  update these client directories, separated by " + File.pathSeparator + ", instead of the current one");
+            System.out.println("         --mirror=port   serve upstream-host's files on port from a local cache, use host:port as host elsewhere");
+            System.out.println("         --mirror-dir=dir  cache directory of the mirror (default " + MirrorServer.DEFAULT_DIR + ")");
+            System.out.println("         --export=file   write the manifest and compressed files (with --from, changed files) to a bundle instead of installing");
+            System.out.println("         --import=file   install from a bundle instead of host game version");
+            System.out.println("         --scan          find the latest version from version (default: last known) on, or list the available ones in from-to");
             System.exit(0);
         }
 
-        List<String> argsList = new ArrayList<>(Arrays.asList(args));
-        String host = argsList.get(0);
-        String game = argsList.get(1);
-        int version = Integer.parseInt(argsList.get(2));
-        Helper helper = new Helper(host, game, version);
-        boolean available = false;
+        Bundle bundle = importFile != null ? openBundle(new File(importFile)) : null;
+        String host = bundle != null ? null : argsList.get(0);
+        String game = bundle != null ? bundle.getGame() : argsList.get(1);
+        int version = bundle != null ? bundle.getVersion() : Integer.parseInt(argsList.get(2));
+        ConnectionPool pool = new ConnectionPool(maxConcurrency, rateLimit != null ? new RateLimiter(Util.parseSize(rateLimit)) : null);
+        Metrics metrics = new Metrics(System.out, System.console() != null);
+        List<String> exportErrors = Collections.synchronizedList(new ArrayList<>());
+        VersionSwitcher switcher = new VersionSwitcher(pool);
+        switcher.setMaxConcurrency(maxConcurrency);
+        switcher.setDeleteRemoved(deleteRemoved);
+        switcher.setDecodeThreads(decodeThreads);
+        switcher.setMetrics(metrics);
+        switcher.setListener(new ProgressListener() {
+            @Override
+            public void fileChecked(InstallTarget target, String path, boolean needUpdate, VerifyTier tier, boolean cached) {
+                if (verbose) {
+                    metrics.println(target.describe(path) + (needUpdate ? ": need update (" + tier + ")" :
+                            cached ? ": OK (" + tier + ", cached)" : ": OK (" + tier + ")"));
+                }
+            }
 
-        try {
-            available = helper.isAvailable();
-        } catch (IOException e) {
-            System.err.print(e.getClass().getSimpleName());
-            if (e.getMessage() != null) {
-                System.err.print(": " + e.getMessage());
+            @Override
+            public void fileUpdated(InstallTarget target, String path, boolean fromStore, boolean linked) {
+                if (verbose) {
+                    metrics.println(target.describe(path) + (linked ? ": OK (linked)" : fromStore ? ": OK (from store)" : ": OK"));
+                }
             }
 
-            System.err.println();
-        }
+            @Override
+            public void fileFailed(InstallTarget target, String path, IOException e) {
+                if (target == null) {
+                    exportErrors.add(VersionSwitcher.failMessage(separatorsToSystem(path), e));
+                }
+            }
 
-        System.out.println(String.format("Version %d available: %b", version, available));
-        if (!available) {
-            System.exit(0);
-        }
+            @Override
+            public void fileRemoved(InstallTarget target, String path, boolean deleted) {
+                metrics.println(target.describe(path) + (deleted ? ": deleted" : ": removed in version " + version));
+            }
 
-        List<FileInfo> fileInfoList = null;
-        try {
-            fileInfoList = helper.getFileInfoList();
-        } catch (IOException e) {
-            System.err.println("Couldn\'t get file info map");
-            System.exit(1);
+            @Override
+            public void fileExported(String path) {
+                if (verbose) {
+                    metrics.println(separatorsToSystem(path) + ": exported");
+                }
+            }
+
+            @Override
+            public void message(String message) {
+                metrics.println(message);
+            }
+        });
+        Helper helper = switcher.getHelper(host, game, version);
+
+        FileInfoMap fileInfoMap = null;
+        if (bundle != null) {
+            try {
+                fileInfoMap = bundle.getFileInfoMap();
+            } catch (IOException e) {
+                System.err.println("Couldn't read file info map from " + bundle.getFile() + ": " + e);
+                System.exit(1);
+            }
+            System.out.println(String.format("Bundle of %s version %d%s, %d files", game, version,
+                    bundle.getFrom() != 0 ? " changed since " + bundle.getFrom() : "", bundle.getEntries().size()));
+        } else {
+            boolean available = false;
+
+            try {
+                available = switcher.isAvailable(helper).join();
+            } catch (CompletionException ce) {
+                Throwable e = ce.getCause();
+                System.err.print(e.getClass().getSimpleName());
+                if (e.getMessage() != null) {
+                    System.err.print(": " + e.getMessage());
+                }
+
+                System.err.println();
+            }
+
+            System.out.println(String.format("Version %d available: %b", version, available));
+            if (!available) {
+                System.exit(0);
+            }
+
+            try {
+                fileInfoMap = switcher.getFileInfoMap(helper).join();
+            } catch (CompletionException e) {
+                System.err.println("Couldn\'t get file info map");
+                System.exit(1);
+            }
         }
 
-        boolean splash = argsList.remove("--splash");
         if (splash) {
-            Optional<FileInfo> splashObj = fileInfoList.stream()
-                    .filter(fi -> fi.getPath().contains("sp_32b_01.bmp"))
+            FileInfoMap map = fileInfoMap;
+            Optional<FileInfo> splashObj = map.indices()
+                    .filter(i -> map.getPath(i).contains("sp_32b_01.bmp"))
+                    .mapToObj(map::get)
                     .findAny();
             if (splashObj.isPresent()) {
-                try (InputStream is = new FilterInputStream(Util.getUnzipStream(helper.getDownloadStream(splashObj.get().getPath()))) {
-                    @Override
-                    public int read() throws IOException {
-                        int b = super.read();
-                        if (b >= 0)
-                            b ^= 0x36;
-                        return b;
-                    }
-
-                    @Override
-                    public int read(byte[] b, int off, int len) throws IOException {
-                        int r = super.read(b, off, len);
-                        if (r >= 0) {
-                            for (int i = 0; i < r; i++)
-                                b[off + i] ^= 0x36;
-                        }
-                        return r;
-                    }
-                }) {
-                    new DataInputStream(is).readFully(new byte[28]);
-                    BufferedImage bi = ImageIO.read(is);
-
-                    JFrame frame = new JFrame("Lineage 2 [" + version + "] " + splashObj.get().getPath());
-                    frame.setContentPane(new JComponent() {
-                        {
-                            setPreferredSize(new Dimension(bi.getWidth(), bi.getHeight()));
+                File tmpDir = null;
+                PartialDownload download = null;
+                try {
+                    tmpDir = Files.createTempDirectory("l2_splash").toFile();
+                    download = new PartialDownload(helper, splashObj.get().getPath(), new File(tmpDir, "splash"));
+                    download.fetch();
+                    try (InputStream is = new FilterInputStream(Util.getUnzipStream(new BufferedInputStream(download.openStream()))) {
+                        @Override
+                        public int read() throws IOException {
+                            int b = super.read();
+                            if (b >= 0)
+                                b ^= 0x36;
+                            return b;
                         }
 
                         @Override
-                        protected void paintComponent(Graphics g) {
-                            g.drawImage(bi, 0, 0, null);
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int r = super.read(b, off, len);
+                            if (r >= 0) {
+                                for (int i = 0; i < r; i++)
+                                    b[off + i] ^= 0x36;
+                            }
+                            return r;
                         }
-                    });
-                    frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-                    frame.pack();
-                    frame.setLocationRelativeTo(null);
-                    frame.setVisible(true);
+                    }) {
+                        new DataInputStream(is).readFully(new byte[28]);
+                        BufferedImage bi = ImageIO.read(is);
+
+                        JFrame frame = new JFrame("Lineage 2 [" + version + "] " + splashObj.get().getPath());
+                        frame.setContentPane(new JComponent() {
+                            {
+                                setPreferredSize(new Dimension(bi.getWidth(), bi.getHeight()));
+                            }
+
+                            @Override
+                            protected void paintComponent(Graphics g) {
+                                g.drawImage(bi, 0, 0, null);
+                            }
+                        });
+                        frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+                        frame.pack();
+                        frame.setLocationRelativeTo(null);
+                        frame.setVisible(true);
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
+                } finally {
+                    if (download != null) {
+                        download.delete();
+                    }
+                    if (tmpDir != null) {
+                        tmpDir.delete();
+                    }
                 }
             } else {
                 System.out.println("Splash not found");
             }
+            switcher.close();
+            return;
+        }
+
+        String filter = argsList.size() > positional ? separatorsToSystem(argsList.get(positional)) : null;
+        VersionSwitcher.Plan plan;
+        try {
+            plan = bundle != null ? switcher.plan(bundle, filter).join() :
+                    switcher.plan(helper, from != null ? Integer.parseInt(from) : 0, filter).join();
+        } catch (CompletionException e) {
+            System.err.println("Couldn't get file info map" + (from != null ? " of version " + from : "") + ": " + e.getCause());
+            System.exit(1);
             return;
         }
+        FileInfoMap map = plan.getFileInfoMap();
+        if (plan.getFromMap() != null) {
+            System.out.println(String.format("%d of %d files changed since version %s", map.changedSince(plan.getFromMap()).count(), map.size(), from));
+        }
 
-        String filter = argsList.size() > 3 ? separatorsToSystem(argsList.get(3)) : null;
+        if (exportFile != null) {
+            export(switcher, plan, new File(exportFile), exportErrors);
+            switcher.close();
+            return;
+        }
 
-        File l2Folder = new File(System.getProperty("user.dir"));
-        List<FileInfo> toUpdate = fileInfoList
-                .parallelStream()
-                .filter(fi -> {
-                    String filePath = separatorsToSystem(fi.getPath());
+        List<File> dirs = new ArrayList<>();
+        if (targets != null) {
+            for (String dir : targets.split(File.pathSeparator)) {
+                if (!dir.isEmpty()) {
+                    dirs.add(new File(dir));
+                }
+            }
+        } else {
+            dirs.add(new File(System.getProperty("user.dir")));
+        }
+        List<InstallTarget> installs = dirs.stream()
+                .map(dir -> new InstallTarget(dir, rehash, dirs.size() > 1))
+                .collect(Collectors.toList());
 
-                    if (filter != null && !wildcardMatch(filePath, filter, IOCase.INSENSITIVE))
-                        return false;
-                    File file = new File(l2Folder, filePath);
+        HashEngine hashEngine = new HashEngine(ioThreads, HashEngine.DEFAULT_BUFFER_SIZE);
+        switcher.setHashEngine(hashEngine);
+        CompletableFuture<VersionSwitcher.Verification> verifying = switcher.verify(plan, installs, verifyMode);
+        metrics.startProgress(metricsFile != null ? new File(metricsFile) : null);
+        VersionSwitcher.Verification verification = verifying.join();
+        metrics.println(String.format("Hashed %d files, %d MB (%.1f MB/s), %d to update",
+                hashEngine.getFiles(), hashEngine.getBytes() >> 20, hashEngine.getMegabytesPerSecond(), verification.getOutdated().size()));
+        metrics.println(metrics.tierSummary());
 
-                    try {
-                        if (file.exists() && file.length() == fi.getSize() && Util.hashEquals(file, fi.getHash())) {
-                            System.out.println(filePath + ": OK");
-                            return false;
-                        }
-                    } catch (IOException e) {
-                        System.out.println(filePath + ": couldn't check hash: " + e);
-                        return true;
-                    }
+        ObjectStore store = null;
+        if (storeDir != null) {
+            try {
+                store = new ObjectStore(new File(storeDir), hashEngine);
+            } catch (IOException e) {
+                metrics.println("Couldn't open store " + storeDir + ": " + e);
+            }
+        }
+        switcher.setObjectStore(store);
 
-                    System.out.println(filePath + ": need update");
-                    return true;
-                })
-                .collect(Collectors.toList());
+        switcher.apply(verification).join();
+        metrics.finish();
+        for (InstallTarget install : installs) {
+            if (installs.size() > 1) {
+                System.out.println(install.summary());
+            }
+            for (String err : install.getErrors())
+                System.err.println(err);
+        }
+        if (store != null && storeSize != null) {
+            try {
+                long freed = store.evict(Util.parseSize(storeSize));
+                if (freed > 0) {
+                    System.out.println(String.format("Evicted %d MB from store", freed >> 20));
+                }
+                store.save();
+            } catch (IOException e) {
+                System.err.println("Couldn't update store " + store.getDir() + ": " + e);
+            }
+        }
+        if (bundle != null) {
+            try {
+                bundle.close();
+            } catch (IOException ignore) {
+            }
+        }
+        switcher.close();
+    }
 
-        List<String> errors = Collections.synchronizedList(new ArrayList<>());
-        ExecutorService executor = Executors.newFixedThreadPool(16);
-        CompletableFuture[] tasks = toUpdate
-                .stream()
-                .map(fi -> CompletableFuture.runAsync(() -> {
-                    String filePath = separatorsToSystem(fi.getPath());
-                    File file = new File(l2Folder, filePath);
-
-                    File folder = file.getParentFile();
-                    if (!folder.exists()) {
-                        if (!folder.mkdirs()) {
-                            errors.add(filePath + ": couldn't create parent dir");
-                            return;
-                        }
-                    }
+    private static Bundle openBundle(File file) {
+        try {
+            return Bundle.open(file);
+        } catch (IOException e) {
+            System.err.println("Couldn't open bundle " + file + ": " + e);
+            System.exit(1);
+            return null;
+        }
+    }
 
-                    try (InputStream input = Util.getUnzipStream(new BufferedInputStream(helper.getDownloadStream(fi.getPath())));
-                         OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
-                        byte[] buffer = new byte[Math.min(fi.getSize(), 1 << 24)];
-                        int pos = 0;
-                        int r;
-                        while ((r = input.read(buffer, pos, buffer.length - pos)) >= 0) {
-                            pos += r;
-                            if (pos == buffer.length) {
-                                output.write(buffer, 0, pos);
-                                pos = 0;
-                            }
-                        }
-                        if (pos != 0) {
-                            output.write(buffer, 0, pos);
-                        }
-                        System.out.println(filePath + ": OK");
-                    } catch (IOException e) {
-                        String msg = filePath + ": FAIL: " + e.getClass().getSimpleName();
-                        if (e.getMessage() != null) {
-                            msg += ": " + e.getMessage();
-                        }
-                        errors.add(msg);
-                    }
-                }, executor))
-                .toArray(CompletableFuture[]::new);
-        CompletableFuture
-                .allOf(tasks)
-                .thenRun(() -> {
-                    for (String err : errors)
-                        System.err.println(err);
-                    executor.shutdown();
-                });
+    private static void export(VersionSwitcher switcher, VersionSwitcher.Plan plan, File file, List<String> errors) {
+        int exported;
+        try {
+            CompletableFuture<Integer> export = switcher.export(plan, file);
+            switcher.getMetrics().startProgress(null);
+            exported = export.join();
+            switcher.getMetrics().finish();
+        } catch (CompletionException e) {
+            for (String err : errors)
+                System.err.println(err);
+            System.err.println("Couldn't write " + file + ": " + e.getCause());
+            System.exit(1);
+            return;
+        }
+
+        for (String err : errors)
+            System.err.println(err);
+        System.out.println(String.format("Exported %d of %d files to %s", exported, plan.getFiles().length, file));
+    }
+
+    private static void scan(String host, String game, String range, ConnectionPool pool) {
+        long start = System.currentTimeMillis();
+        try (VersionSwitcher switcher = new VersionSwitcher(pool)) {
+            VersionScanner scanner = new VersionScanner(switcher, VersionScanner.DEFAULT_CACHE_FILE, VersionScanner.DEFAULT_TTL);
+            scanner.setProbes(pool.getMaxPerHost());
+            if (range != null && range.contains("-")) {
+                int from = Integer.parseInt(range.substring(0, range.indexOf('-')));
+                int to = Integer.parseInt(range.substring(range.indexOf('-') + 1));
+                int[] versions = scanner.scan(host, game, from, to).join();
+                System.out.println(String.format("Available versions of %s in %d-%d: %s", game, from, to,
+                        versions.length == 0 ? "none" : Arrays.stream(versions).mapToObj(String::valueOf).collect(Collectors.joining(", "))));
+            } else {
+                int latest = scanner.findLatest(host, game, range != null ? Integer.parseInt(range) : 1).join();
+                System.out.println(latest != 0 ? String.format("Latest version of %s: %d", game, latest) :
+                        String.format("No version of %s found", game));
+            }
+            System.out.println(String.format("%d requests in %d ms", scanner.getRequests(), System.currentTimeMillis() - start));
+            scanner.save();
+        } catch (CompletionException e) {
+            System.err.println("Couldn't scan " + host + ": " + e.getCause());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Couldn't save " + VersionScanner.DEFAULT_CACHE_FILE + ": " + e);
+        }
+    }
+
+    private static void mirror(String upstream, int port, File dir, ConnectionPool pool, boolean verbose) {
+        MirrorServer server = new MirrorServer(upstream, dir, pool);
+        if (verbose) {
+            server.setLog(System.out);
+        }
+        try {
+            server.start(new InetSocketAddress(port));
+        } catch (IOException e) {
+            System.err.println("Couldn't start mirror on port " + port + ": " + e);
+            System.exit(1);
+        }
+        System.out.println(String.format("Mirroring %s on port %d, cache %s", upstream, server.getPort(), dir.getAbsolutePath()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(server.summary())));
+    }
+
+    private static String option(List<String> argsList, String name, String defaultValue) {
+        for (int i = 0; i < argsList.size(); i++) {
+            String arg = argsList.get(i);
+            if (arg.startsWith(name + "=")) {
+                argsList.remove(i);
+                return arg.substring(name.length() + 1);
+            }
+            if (arg.equals(name) && i + 1 < argsList.size()) {
+                argsList.remove(i);
+                return argsList.remove(i);
+            }
+        }
+        return defaultValue;
     }
 }
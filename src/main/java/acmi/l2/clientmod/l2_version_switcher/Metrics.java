@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of an update run, rendered as one progress line and optionally
+ * written as JSON.
+ * <p>
+ * Hashed bytes come from the {@link HashEngine}, compressed bytes from the
+ * {@link ConnectionPool} and decompressed bytes from {@link FileUpdate}, so
+ * comparing the three rates shows whether a run is bound by disk, network
+ * or LZMA decoding. GC counts and heap peaks are taken from the platform
+ * MXBeans; heap peaks are JVM-wide and only reset by
+ * {@link #startProgress(File)}, so they cover a measured run.
+ */
+public class Metrics {
+    public static final long PROGRESS_INTERVAL = 500;
+    public static final long PLAIN_PROGRESS_INTERVAL = 5000;
+
+    private final long startTime = System.nanoTime();
+    private final long gcCountBase = gcCount();
+    private final long gcTimeBase = gcTime();
+    private final PrintStream out;
+    private final boolean console;
+    private final Object outputLock = new Object();
+    private volatile String progressLine = "";
+    private volatile String phase = "init";
+    private ScheduledExecutorService ticker;
+    private File metricsFile;
+
+    private volatile HashEngine hashEngine;
+    private volatile ConnectionPool pool;
+    private volatile DownloadScheduler scheduler;
+    private long compressedBase;
+    private volatile double verifySeconds;
+
+    private volatile long filesToCheck;
+    private final LongAdder filesChecked = new LongAdder();
+    private final LongAdder filesCached = new LongAdder();
+    private final LongAdder[] filesByTier = new LongAdder[VerifyTier.values().length];
+    private final Histogram verifyLatency = new Histogram();
+
+    private volatile long filesToUpdate;
+    private volatile long bytesToUpdate;
+    private final LongAdder filesUpdated = new LongAdder();
+    private final LongAdder filesFromStore = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder resumedDownloads = new LongAdder();
+    private final LongAdder decompressedBytes = new LongAdder();
+    private final LongAdder updatedBytes = new LongAdder();
+    private final Histogram downloadLatency = new Histogram();
+
+    public Metrics(PrintStream out, boolean console) {
+        this.out = out;
+        this.console = console;
+        for (int i = 0; i < filesByTier.length; i++) {
+            filesByTier[i] = new LongAdder();
+        }
+    }
+
+    public void startVerify(HashEngine hashEngine, long files) {
+        this.hashEngine = hashEngine;
+        this.filesToCheck = files;
+        this.phase = "verify";
+    }
+
+    /**
+     * @param tier   the tier that decided the result, {@link VerifyTier#FULL}
+     *               for files known from the {@link VerificationIndex}
+     * @param cached whether the file was found in the index
+     */
+    public void fileChecked(VerifyTier tier, boolean cached, long nanos) {
+        filesChecked.increment();
+        filesByTier[tier.ordinal()].increment();
+        if (cached) {
+            filesCached.increment();
+        } else {
+            verifyLatency.record(nanos);
+        }
+    }
+
+    /**
+     * @return e.g. {@code "Checked 500 files: 120 cached, 20 full, 300 sampled, 60 quick"}
+     */
+    public String tierSummary() {
+        long cached = filesCached.sum();
+        return String.format(Locale.ROOT, "Checked %d files: %d cached, %d full, %d sampled, %d quick",
+                filesChecked.sum(), cached,
+                filesByTier[VerifyTier.FULL.ordinal()].sum() - cached,
+                filesByTier[VerifyTier.SAMPLED.ordinal()].sum(),
+                filesByTier[VerifyTier.QUICK.ordinal()].sum());
+    }
+
+    public void startDownload(ConnectionPool pool, DownloadScheduler scheduler, long files, long bytes) {
+        this.compressedBase = pool.getBytesRead();
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.filesToUpdate = files;
+        this.bytesToUpdate = bytes;
+        this.phase = "download";
+    }
+
+    public void fileUpdated(long size, boolean fromStore, long nanos) {
+        filesUpdated.increment();
+        updatedBytes.add(size);
+        if (fromStore) {
+            filesFromStore.increment();
+        } else {
+            downloadLatency.record(nanos);
+        }
+    }
+
+    public void fileFailed(long size) {
+        filesFailed.increment();
+        updatedBytes.add(size);
+    }
+
+    public void downloadResumed() {
+        resumedDownloads.increment();
+    }
+
+    public void decompressed(long bytes) {
+        decompressedBytes.add(bytes);
+    }
+
+    /**
+     * Starts redrawing the progress line; with {@code metricsFile} the JSON
+     * summary is rewritten every {@link #PLAIN_PROGRESS_INTERVAL} ms as well.
+     * Resets the JVM's heap peaks, so only call it for a measured run.
+     */
+    public synchronized void startProgress(File metricsFile) {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                memoryPool.resetPeakUsage();
+            }
+        }
+        this.metricsFile = metricsFile;
+        ticker = Executors.newSingleThreadScheduledExecutor(Util.daemonThreadFactory("progress"));
+        long interval = console ? PROGRESS_INTERVAL : PLAIN_PROGRESS_INTERVAL;
+        long[] ticks = {0};
+        ticker.scheduleAtFixedRate(() -> {
+            showProgress(render());
+            if (metricsFile != null && ++ticks[0] * interval % PLAIN_PROGRESS_INTERVAL == 0) {
+                writeQuietly(metricsFile);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prints the final progress line and writes the JSON summary.
+     */
+    public synchronized void finish() {
+        phase = "done";
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+        showProgress(render());
+        if (console) {
+            synchronized (outputLock) {
+                out.println();
+                progressLine = "";
+            }
+        }
+        if (metricsFile != null) {
+            writeQuietly(metricsFile);
+        }
+    }
+
+    /**
+     * Prints a message above the progress line.
+     */
+    public void println(String message) {
+        synchronized (outputLock) {
+            if (console && !progressLine.isEmpty()) {
+                out.print('\r' + pad("", progressLine.length()) + '\r');
+            }
+            out.println(message);
+            if (console && !progressLine.isEmpty()) {
+                out.print(progressLine);
+            }
+            out.flush();
+        }
+    }
+
+    private void showProgress(String line) {
+        synchronized (outputLock) {
+            if (console) {
+                out.print('\r' + pad(line, progressLine.length()));
+                progressLine = line;
+            } else {
+                out.println(line);
+            }
+            out.flush();
+        }
+    }
+
+    public String render() {
+        double seconds = elapsedSeconds();
+        StringBuilder sb = new StringBuilder();
+        switch (phase) {
+            case "verify":
+                HashEngine engine = hashEngine;
+                sb.append(String.format(Locale.ROOT, "verify %d/%d files (%d cached), hashed %s at %s/s",
+                        filesChecked.sum(), filesToCheck, filesCached.sum(),
+                        formatBytes(engine.getBytes()), formatBytes((long) (engine.getBytes() / seconds))));
+                break;
+            case "download":
+            case "done":
+                if (pool == null) {
+                    sb.append(String.format(Locale.ROOT, "checked %d files, nothing to update", filesChecked.sum()));
+                    break;
+                }
+                long done = updatedBytes.sum();
+                double downloadSeconds = seconds - verifySeconds;
+                long decompressed = decompressedBytes.sum();
+                sb.append(String.format(Locale.ROOT, "update %d/%d files (%d failed), %s/%s, net %s/s, lzma %s/s",
+                        filesUpdated.sum() + filesFailed.sum(), filesToUpdate, filesFailed.sum(),
+                        formatBytes(done), formatBytes(bytesToUpdate),
+                        formatBytes((long) (compressedBytes() / downloadSeconds)),
+                        formatBytes((long) (decompressed / downloadSeconds))));
+                DownloadScheduler s = scheduler;
+                if (s != null && !"done".equals(phase)) {
+                    sb.append(String.format(Locale.ROOT, ", active %d/%d, queued %d", s.getActive(), s.getLimit(), s.getQueued()));
+                    // remaining and finished in the same unit, manifest sizes of whole files
+                    if (done > 0 && bytesToUpdate > done) {
+                        long eta = (long) ((bytesToUpdate - done) * downloadSeconds / done);
+                        sb.append(String.format(Locale.ROOT, ", ETA %d:%02d", eta / 60, eta % 60));
+                    }
+                } else {
+                    sb.append(String.format(Locale.ROOT, ", %.1f s, gc %d ms", seconds, gcTime() - gcTimeBase));
+                }
+                break;
+            default:
+                sb.append(phase);
+        }
+        return sb.toString();
+    }
+
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            w.write(toJson());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeQuietly(File file) {
+        try {
+            write(file);
+        } catch (IOException e) {
+            println("Couldn't write " + file + ": " + e);
+        }
+    }
+
+    public String toJson() {
+        double seconds = elapsedSeconds();
+        HashEngine engine = hashEngine;
+        DownloadScheduler s = scheduler;
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"phase\": \"").append(phase).append("\",\n");
+        sb.append(String.format(Locale.ROOT, "  \"elapsedSeconds\": %.3f,%n", seconds));
+        sb.append("  \"verify\": {\n");
+        sb.append("    \"files\": ").append(filesToCheck).append(",\n");
+        sb.append("    \"checked\": ").append(filesChecked.sum()).append(",\n");
+        sb.append("    \"cached\": ").append(filesCached.sum()).append(",\n");
+        for (VerifyTier tier : VerifyTier.values()) {
+            sb.append("    \"").append(tier).append("\": ").append(filesByTier[tier.ordinal()].sum()).append(",\n");
+        }
+        sb.append("    \"hashedBytes\": ").append(engine != null ? engine.getBytes() : 0).append(",\n");
+        sb.append(String.format(Locale.ROOT, "    \"hashedBytesPerSecond\": %.0f,%n", engine != null ? engine.getBytes() / (verifySeconds > 0 ? verifySeconds : seconds) : 0.0));
+        sb.append("    \"latency\": ").append(verifyLatency.toJson()).append('\n');
+        sb.append("  },\n");
+        sb.append("  \"download\": {\n");
+        sb.append("    \"files\": ").append(filesToUpdate).append(",\n");
+        sb.append("    \"bytes\": ").append(bytesToUpdate).append(",\n");
+        sb.append("    \"updated\": ").append(filesUpdated.sum()).append(",\n");
+        sb.append("    \"fromStore\": ").append(filesFromStore.sum()).append(",\n");
+        sb.append("    \"failed\": ").append(filesFailed.sum()).append(",\n");
+        sb.append("    \"resumed\": ").append(resumedDownloads.sum()).append(",\n");
+        sb.append("    \"active\": ").append(s != null ? s.getActive() : 0).append(",\n");
+        sb.append("    \"queued\": ").append(s != null ? s.getQueued() : 0).append(",\n");
+        sb.append("    \"concurrencyLimit\": ").append(s != null ? s.getLimit() : 0).append(",\n");
+        double downloadSeconds = seconds - verifySeconds;
+        sb.append("    \"compressedBytes\": ").append(compressedBytes()).append(",\n");
+        sb.append(String.format(Locale.ROOT, "    \"compressedBytesPerSecond\": %.0f,%n", pool != null ? compressedBytes() / downloadSeconds : 0.0));
+        sb.append("    \"decompressedBytes\": ").append(decompressedBytes.sum()).append(",\n");
+        sb.append(String.format(Locale.ROOT, "    \"decompressedBytesPerSecond\": %.0f,%n", pool != null ? decompressedBytes.sum() / downloadSeconds : 0.0));
+        sb.append("    \"latency\": ").append(downloadLatency.toJson()).append('\n');
+        sb.append("  },\n");
+        sb.append("  \"memory\": {\n");
+        sb.append("    \"gcCount\": ").append(gcCount() - gcCountBase).append(",\n");
+        sb.append("    \"gcMillis\": ").append(gcTime() - gcTimeBase).append(",\n");
+        sb.append("    \"heapUsed\": ").append(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()).append(",\n");
+        sb.append("    \"heapPeak\": ").append(heapPeak()).append(",\n");
+        sb.append("    \"heapMax\": ").append(Runtime.getRuntime().maxMemory()).append('\n');
+        sb.append("  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Marks the end of verification; download rates are measured from here.
+     */
+    public void verifyDone() {
+        verifySeconds = elapsedSeconds();
+    }
+
+    private long compressedBytes() {
+        ConnectionPool p = pool;
+        return p != null ? p.getBytesRead() - compressedBase : 0;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Sum of the heap pools' peaks, an upper bound of the actual peak.
+     */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP && memoryPool.getPeakUsage() != null) {
+                peak += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+    }
+
+    private static String pad(String s, int length) {
+        StringBuilder sb = new StringBuilder(s);
+        while (sb.length() < length) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1 << 10) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format(Locale.ROOT, "%.1f %sB", bytes / (double) (1L << (unit * 10)), "KMGTPE".charAt(unit - 1));
+    }
+
+    /**
+     * Latency histogram with power of two buckets, from 1 microsecond up.
+     * Percentiles are reported as bucket upper bounds.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private volatile long max;
+
+        public void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+            count.increment();
+            total.add(nanos);
+            if (nanos > max) {
+                synchronized (this) {
+                    max = Math.max(max, nanos);
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return upper bound in nanoseconds of the bucket holding the
+         * {@code p}-th percentile
+         */
+        public long percentile(double p) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * p / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(max, (2L << i) * 1000);
+                }
+            }
+            return max;
+        }
+
+        public String toJson() {
+            long n = count.sum();
+            return String.format(Locale.ROOT, "{\"count\": %d, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p90Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f}",
+                    n, n > 0 ? total.sum() / 1e6 / n : 0.0,
+                    percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, max / 1e6);
+        }
+    }
+}
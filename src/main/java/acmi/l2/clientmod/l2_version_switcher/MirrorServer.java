@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the patch server URL layout from a local cache, so that many
+ * clients behind one uplink download every object from upstream once.
+ * Point the {@code host} argument of other instances at the mirror.
+ * <p>
+ * Objects are cached forever: a version's files never change once
+ * published. A miss starts a single upstream fetch that every concurrent
+ * request for the same path waits on, and requests are served from the
+ * growing file while it is fetched. Upstream 404s are remembered for
+ * {@link #MISSING_TTL} ms since clients probe for {@code .zip} and
+ * {@code .zNN} names that don't exist. GET and HEAD are supported, GET
+ * with a single byte range. A HEAD that misses is forwarded as a HEAD, it
+ * doesn't fetch the object.
+ */
+public class MirrorServer {
+    public static final String DEFAULT_DIR = "mirror";
+    public static final long MISSING_TTL = 5 * 60 * 1000;
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final String upstream;
+    private final File dir;
+    private final ConnectionPool pool;
+    private final Map<String, Fetch> fetches = new ConcurrentHashMap<>();
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+    private final ExecutorService fetchExecutor = Executors.newCachedThreadPool(Util.daemonThreadFactory("mirror-fetch"));
+    private PrintStream log;
+    private HttpServer server;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder upstreamFetches = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+
+    /**
+     * @param upstream host[:port] of the patch server, as passed to {@link Helper}
+     */
+    public MirrorServer(String upstream, File dir, ConnectionPool pool) {
+        this.upstream = upstream;
+        this.dir = dir;
+        this.pool = pool;
+    }
+
+    /**
+     * @param log where to print a line per request, {@code null} for none
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    public void start(InetSocketAddress address) throws IOException {
+        Files.createDirectories(dir.toPath());
+        server = HttpServer.create(address, 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(Util.daemonThreadFactory("mirror")));
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        fetchExecutor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getUpstreamFetches() {
+        return upstreamFetches.sum();
+    }
+
+    /**
+     * Requests that joined a fetch already in progress.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getBytesServed() {
+        return bytesServed.sum();
+    }
+
+    /**
+     * @return e.g. {@code "120 requests, 80 hits, 30 upstream fetches, 10 coalesced, 1.2 GB served"}
+     */
+    public String summary() {
+        return String.format("%d requests, %d hits, %d upstream fetches, %d coalesced, %s served",
+                getRequests(), getHits(), getUpstreamFetches(), getCoalesced(), Metrics.formatBytes(getBytesServed()));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        String path = exchange.getRequestURI().getPath();
+        String status = "";
+        int code;
+        try {
+            String method = exchange.getRequestMethod();
+            File file = getCacheFile(path);
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                code = send(exchange, HttpURLConnection.HTTP_BAD_METHOD);
+            } else if (file == null) {
+                code = send(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+            } else if (file.isFile()) {
+                hits.increment();
+                status = " hit";
+                code = serve(exchange, new Cached(file));
+            } else if (isMissing(path)) {
+                status = " missing";
+                code = send(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+            } else if ("HEAD".equals(method) && !fetches.containsKey(path)) {
+                status = " forwarded";
+                code = forwardHead(exchange, path);
+            } else {
+                Fetch fetch = new Fetch(path, file);
+                Fetch running = fetches.putIfAbsent(path, fetch);
+                if (running == null) {
+                    upstreamFetches.increment();
+                    fetchExecutor.execute(fetch);
+                    status = " miss";
+                } else {
+                    coalesced.increment();
+                    fetch = running;
+                    status = " coalesced";
+                }
+                code = fetch.awaitHeaders();
+                if (code == HttpURLConnection.HTTP_OK) {
+                    code = serve(exchange, fetch);
+                } else {
+                    code = send(exchange, code);
+                }
+            }
+        } catch (IOException e) {
+            // client gone or upstream failed mid-transfer, the client resumes with a range request
+            code = -1;
+            status += " " + e;
+        } finally {
+            exchange.close();
+        }
+
+        PrintStream log = this.log;
+        if (log != null) {
+            log.println(exchange.getRequestMethod() + " " + path + " " + code + status);
+        }
+    }
+
+    /**
+     * @return {@code null} if {@code path} isn't a plain relative path
+     */
+    private File getCacheFile(String path) {
+        if (path == null || !path.startsWith("/") || path.endsWith("/") || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+            return null;
+        }
+        for (String segment : path.substring(1).split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return null;
+            }
+        }
+        return new File(dir, path.substring(1));
+    }
+
+    private boolean isMissing(String path) {
+        Long since = missing.get(path);
+        if (since == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - since < MISSING_TTL) {
+            return true;
+        }
+        missing.remove(path, since);
+        return false;
+    }
+
+    private int forwardHead(HttpExchange exchange, String path) throws IOException {
+        try (ConnectionPool.Response response = pool.head("http://" + upstream + path)) {
+            int code = response.getCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                missing.put(path, System.currentTimeMillis());
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                Headers headers = exchange.getResponseHeaders();
+                headers.set("Accept-Ranges", "bytes");
+                headers.set("Content-Type", "application/octet-stream");
+                if (response.getContentLength() >= 0) {
+                    headers.set("Content-Length", String.valueOf(response.getContentLength()));
+                }
+            }
+            return send(exchange, code);
+        }
+    }
+
+    private int send(HttpExchange exchange, int code) throws IOException {
+        exchange.sendResponseHeaders(code, -1);
+        return code;
+    }
+
+    private int serve(HttpExchange exchange, Source source) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("Content-Type", "application/octet-stream");
+
+        long start = 0;
+        long end = -1;
+        int code = HttpURLConnection.HTTP_OK;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher m = range != null ? RANGE.matcher(range.trim()) : null;
+        if (m != null && m.matches() && !(m.group(1).isEmpty() && m.group(2).isEmpty())) {
+            long length = source.awaitLength();
+            if (m.group(1).isEmpty()) {
+                start = Math.max(0, length - Long.parseLong(m.group(2)));
+                end = length - 1;
+            } else {
+                start = Long.parseLong(m.group(1));
+                end = m.group(2).isEmpty() ? length - 1 : Math.min(Long.parseLong(m.group(2)), length - 1);
+            }
+            if (start >= length || start > end) {
+                headers.set("Content-Range", "bytes */" + length);
+                return send(exchange, HTTP_RANGE_NOT_SATISFIABLE);
+            }
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            code = HttpURLConnection.HTTP_PARTIAL;
+        } else if (source.getLength() >= 0) {
+            end = source.getLength() - 1;
+        }
+
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            if (end >= 0) {
+                headers.set("Content-Length", String.valueOf(end - start + 1));
+            }
+            exchange.sendResponseHeaders(code, -1);
+            return code;
+        }
+
+        // 0 means chunked, for an upstream that didn't send a length
+        exchange.sendResponseHeaders(code, end >= 0 ? end - start + 1 : 0);
+        try (FileChannel channel = source.open();
+             OutputStream os = exchange.getResponseBody()) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = start;
+            while (end < 0 || position <= end) {
+                long available = source.awaitAvailable(position);
+                if (available <= position) {
+                    break;
+                }
+                buffer.clear();
+                long limit = Math.min(available, end < 0 ? Long.MAX_VALUE : end + 1);
+                buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+                int r = channel.read(buffer, position);
+                if (r < 0) {
+                    throw new EOFException(channel + " is shorter than expected");
+                }
+                os.write(buffer.array(), 0, r);
+                position += r;
+                bytesServed.add(r);
+            }
+            if (end >= 0 && position <= end) {
+                throw new EOFException("upstream ended at " + position + " of " + (end + 1));
+            }
+        }
+        return code;
+    }
+
+    private interface Source {
+        /**
+         * @return total length, -1 if not known yet
+         */
+        long getLength();
+
+        long awaitLength() throws IOException;
+
+        /**
+         * Blocks until there are bytes past {@code position} or the source
+         * is complete.
+         *
+         * @return number of bytes that can be read
+         */
+        long awaitAvailable(long position) throws IOException;
+
+        FileChannel open() throws IOException;
+    }
+
+    private static class Cached implements Source {
+        private final File file;
+        private final long length;
+
+        Cached(File file) {
+            this.file = file;
+            this.length = file.length();
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public long awaitLength() {
+            return length;
+        }
+
+        @Override
+        public long awaitAvailable(long position) {
+            return length;
+        }
+
+        @Override
+        public FileChannel open() throws IOException {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * Upstream download into {@code path.tmp}, renamed into the cache when
+     * complete. Readers follow the temporary file as it grows.
+     */
+    private class Fetch implements Source, Runnable {
+        private final String path;
+        private final File file;
+        private final File tmp;
+
+        private boolean headers;
+        private int code;
+        private long length = -1;
+        private long written;
+        private boolean done;
+        private boolean moved;
+        private IOException error;
+
+        Fetch(String path, File file) {
+            this.path = path;
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (file.isFile()) {
+                    // cached by a fetch that finished just before this one was registered
+                    synchronized (this) {
+                        headers = true;
+                        code = HttpURLConnection.HTTP_OK;
+                        length = written = file.length();
+                        moved = true;
+                    }
+                    return;
+                }
+
+                try (ConnectionPool.Response response = pool.get("http://" + upstream + path, 0)) {
+                    if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                        if (response.getCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                            missing.put(path, System.currentTimeMillis());
+                        }
+                        synchronized (this) {
+                            headers = true;
+                            code = response.getCode();
+                        }
+                        return;
+                    }
+
+                    Files.createDirectories(file.getParentFile().toPath());
+                    try (InputStream is = response.getBody();
+                         OutputStream os = new FileOutputStream(tmp)) {
+                        // readers open the temporary file once they see the headers
+                        synchronized (this) {
+                            headers = true;
+                            code = HttpURLConnection.HTTP_OK;
+                            length = response.getContentLength();
+                            notifyAll();
+                        }
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int r;
+                        while ((r = is.read(buffer)) >= 0) {
+                            os.write(buffer, 0, r);
+                            synchronized (this) {
+                                written += r;
+                                notifyAll();
+                            }
+                        }
+                    }
+                    synchronized (this) {
+                        if (length >= 0 && written != length) {
+                            throw new EOFException(path + ": got " + written + " of " + length + " bytes");
+                        }
+                        length = written;
+                        Util.move(tmp.toPath(), file.toPath());
+                        moved = true;
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    error = e;
+                    if (!headers) {
+                        headers = true;
+                        code = HttpURLConnection.HTTP_BAD_GATEWAY;
+                    }
+                }
+                tmp.delete();
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+                fetches.remove(path, this);
+            }
+        }
+
+        synchronized int awaitHeaders() throws IOException {
+            while (!headers) {
+                await();
+            }
+            return code;
+        }
+
+        @Override
+        public synchronized long getLength() {
+            return length;
+        }
+
+        @Override
+        public synchronized long awaitLength() throws IOException {
+            while (length < 0 && !done) {
+                await();
+            }
+            checkError();
+            return length;
+        }
+
+        @Override
+        public synchronized long awaitAvailable(long position) throws IOException {
+            while (written <= position && !done) {
+                await();
+            }
+            checkError();
+            return written;
+        }
+
+        @Override
+        public synchronized FileChannel open() throws IOException {
+            checkError();
+            return FileChannel.open((moved ? file : tmp).toPath(), StandardOpenOption.READ);
+        }
+
+        private void checkError() throws IOException {
+            if (error != null) {
+                throw new IOException(path + ": upstream fetch failed", error);
+            }
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decompressed files shared by all versions, stored as {@code ab/cdef...}
+ * under their SHA-1. Only files that passed hash verification are added.
+ * <p>
+ * Files are hard-linked between the store and installs where possible and
+ * copied otherwise. Installs always replace files by rename, never in place,
+ * but other tools may edit an installed file in place, and with it the
+ * linked object. So the size, mtime and file key of every object are
+ * recorded when it is stored, and an object whose attributes changed is
+ * hashed again before use and dropped if it no longer matches.
+ * <p>
+ * Last use times and attributes are kept in a separate
+ * {@value #ACCESS_FILE_NAME} file rather than in file mtimes, which are
+ * shared with every linked install.
+ */
+public class ObjectStore {
+    public static final String ACCESS_FILE_NAME = ".access";
+
+    private static final int MAGIC = 0x4C32_4F53; // "L2OS"
+    private static final int FORMAT_VERSION = 1;
+
+    private final File dir;
+    private final HashEngine hashEngine;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ObjectStore(File dir) throws IOException {
+        this(dir, new HashEngine(1, HashEngine.DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * @param hashEngine hashes objects whose attributes changed
+     */
+    public ObjectStore(File dir, HashEngine hashEngine) throws IOException {
+        this.dir = dir;
+        this.hashEngine = hashEngine;
+        Files.createDirectories(dir.toPath());
+
+        // an unknown or damaged access file is dropped, its objects get hashed on first use
+        File accessFile = new File(dir, ACCESS_FILE_NAME);
+        if (accessFile.exists()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(accessFile)))) {
+                if (dis.readInt() == MAGIC && dis.readInt() == FORMAT_VERSION) {
+                    int count = dis.readInt();
+                    for (int i = 0; i < count; i++) {
+                        entries.put(dis.readUTF(), new Entry(dis.readLong(), dis.readLong(), dis.readLong(), dis.readInt()));
+                    }
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                entries.clear();
+            }
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public File getObjectFile(byte[] hash) {
+        String hex = Util.toHexBinary(hash);
+        return new File(new File(dir, hex.substring(0, 2)), hex.substring(2));
+    }
+
+    /**
+     * Whether the store has an intact object with {@code hash}.
+     */
+    public boolean contains(byte[] hash, long size) throws IOException {
+        return check(hash, size);
+    }
+
+    /**
+     * Places the object with {@code hash} at {@code target}. The object is
+     * hashed first if it changed since it was stored.
+     *
+     * @return {@code false} if the store has no intact object with this hash
+     */
+    public boolean install(byte[] hash, long size, File target) throws IOException {
+        if (!check(hash, size)) {
+            return false;
+        }
+
+        Util.install(getObjectFile(hash).toPath(), target.toPath());
+        touch(hash);
+        return true;
+    }
+
+    /**
+     * Adds a verified file to the store, unless it is already there.
+     */
+    public void put(byte[] hash, File source) throws IOException {
+        if (check(hash, source.length())) {
+            touch(hash);
+            return;
+        }
+
+        File object = getObjectFile(hash);
+        Files.createDirectories(object.getParentFile().toPath());
+        Path tmp = Paths.get(object.getPath() + ".tmp");
+        Files.deleteIfExists(tmp);
+        Util.linkOrCopy(source.toPath(), tmp);
+        Files.move(tmp, object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        record(hash, Files.readAttributes(object.toPath(), BasicFileAttributes.class));
+    }
+
+    public void save() throws IOException {
+        File accessFile = new File(dir, ACCESS_FILE_NAME);
+        File tmp = new File(dir, ACCESS_FILE_NAME + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            Map<String, Entry> snapshot = new HashMap<>(entries);
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                dos.writeUTF(e.getKey());
+                dos.writeLong(entry.lastUse);
+                dos.writeLong(entry.size);
+                dos.writeLong(entry.modified);
+                dos.writeInt(entry.fileKey);
+            }
+        }
+        Files.move(tmp.toPath(), accessFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Deletes least recently used objects until the store holds at most
+     * {@code maxBytes}.
+     *
+     * @return number of bytes freed
+     */
+    public long evict(long maxBytes) throws IOException {
+        List<StoredObject> objects = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(dir.toPath(), Files::isDirectory)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(prefix)) {
+                    for (Path p : files) {
+                        BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                        if (!a.isRegularFile() || p.getFileName().toString().endsWith(".tmp")) {
+                            continue;
+                        }
+                        String key = prefix.getFileName().toString() + p.getFileName().toString();
+                        Entry entry = entries.get(key);
+                        objects.add(new StoredObject(p, key, a.size(), entry != null ? entry.lastUse : a.lastModifiedTime().toMillis()));
+                        total += a.size();
+                    }
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return 0;
+        }
+
+        objects.sort(Comparator.comparingLong(o -> o.lastUse));
+        long freed = 0;
+        for (int i = 0; i < objects.size() && total - freed > maxBytes; i++) {
+            StoredObject o = objects.get(i);
+            try {
+                Files.delete(o.path);
+                entries.remove(o.key);
+                freed += o.size;
+            } catch (IOException ignore) {
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return whether the object exists with {@code size} and its content
+     * still has {@code hash}; a changed object is deleted
+     */
+    private boolean check(byte[] hash, long size) throws IOException {
+        File object = getObjectFile(hash);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(object.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!attributes.isRegularFile() || attributes.size() != size) {
+            return false;
+        }
+
+        Entry entry = entries.get(Util.toHexBinary(hash));
+        if (entry != null && entry.matches(attributes)) {
+            return true;
+        }
+        if (!Arrays.equals(hashEngine.hash(object), hash)) {
+            Files.deleteIfExists(object.toPath());
+            entries.remove(Util.toHexBinary(hash));
+            return false;
+        }
+        record(hash, attributes);
+        return true;
+    }
+
+    private void record(byte[] hash, BasicFileAttributes attributes) {
+        entries.put(Util.toHexBinary(hash), new Entry(System.currentTimeMillis(), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), fileKey(attributes)));
+    }
+
+    private void touch(byte[] hash) {
+        entries.computeIfPresent(Util.toHexBinary(hash), (k, e) -> new Entry(System.currentTimeMillis(), e.size, e.modified, e.fileKey));
+    }
+
+    private static int fileKey(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key == null ? 0 : key.hashCode();
+    }
+
+    /**
+     * Last use and the attributes an object had when it was last known
+     * to match its hash.
+     */
+    private static class Entry {
+        final long lastUse;
+        final long size;
+        final long modified;
+        final int fileKey;
+
+        Entry(long lastUse, long size, long modified, int fileKey) {
+            this.lastUse = lastUse;
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() &&
+                    modified == attributes.lastModifiedTime().toMillis() &&
+                    fileKey == fileKey(attributes);
+        }
+    }
+
+    private static class StoredObject {
+        final Path path;
+        final String key;
+        final long size;
+        final long lastUse;
+
+        StoredObject(Path path, String key, long size, long lastUse) {
+            this.path = path;
+            this.key = key;
+            this.size = size;
+            this.lastUse = lastUse;
+        }
+    }
+}
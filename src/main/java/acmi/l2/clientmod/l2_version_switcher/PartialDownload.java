@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.util.*;
+
+/**
+ * Compressed download of one file that survives interruptions.
+ * <p>
+ * Fetched bytes are kept in {@code <file>.part} ({@code <file>.zNN.part} for
+ * split archives) next to the target, {@code <file>.part.state} records
+ * whether the archive is split, how many parts are complete and how many
+ * bytes of each unfinished one are stored. An interrupted transfer continues
+ * with a {@code Range} request; if the server ignores it the already stored
+ * prefix is skipped. Only a 404 for {@code .zip} means the archive is split,
+ * and the state is saved once the server has answered for the form used,
+ * so a transient error doesn't stick to later attempts.
+ * <p>
+ * Parts of a split archive are fetched up to {@link #getPrefetchParts()} at
+ * a time, each into its own file, and completed in order. Once
+ * {@link #fetch()} returns, {@link #openStream()} reads the whole archive
+ * from the files, so decoding never holds a connection.
+ */
+public class PartialDownload {
+    private static final int STATE_SAVE_INTERVAL = 1 << 20;
+
+    private final Helper helper;
+    private final String path;
+    private final File target;
+    private final File stateFile;
+    private int prefetchParts = Helper.DEFAULT_PREFETCH_PARTS;
+
+    private volatile boolean known;
+    private boolean resumed;
+    private boolean split;
+    private int completedParts;
+    private final Map<Integer, Long> storedBytes = new HashMap<>();
+    private final Map<Integer, PartFetch> fetches = new HashMap<>();
+    private volatile int lastPart = Integer.MAX_VALUE;
+    private volatile boolean cancelled;
+
+    public PartialDownload(Helper helper, String path, File target) {
+        this.helper = helper;
+        this.path = path;
+        this.target = target;
+        this.stateFile = new File(target.getPath() + ".part.state");
+    }
+
+    public boolean isSplit() {
+        return split;
+    }
+
+    public int getCompletedParts() {
+        return completedParts;
+    }
+
+    public int getPrefetchParts() {
+        return prefetchParts;
+    }
+
+    public void setPrefetchParts(int prefetchParts) {
+        if (prefetchParts < 1) {
+            throw new IllegalArgumentException("prefetchParts must be positive: " + prefetchParts);
+        }
+        this.prefetchParts = prefetchParts;
+    }
+
+    /**
+     * @return {@code true} if the last {@link #fetch} continued a download
+     * left by an earlier attempt
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Fetches whatever is still missing.
+     */
+    public void fetch() throws IOException {
+        loadState();
+        resumed = known;
+
+        if (!known) {
+            deleteParts();
+            split = Boolean.TRUE.equals(helper.isSplit(path));
+            if (!split) {
+                ConnectionPool.Response response = helper.open(helper.getZipUrl(path), 0);
+                if (response.getCode() == HttpURLConnection.HTTP_OK) {
+                    helper.setSplit(path, false);
+                    PartFetch single = start(0, response);
+                    confirm();
+                    append(response, partFile(0), 0, single);
+                    return;
+                }
+                response.close();
+                if (response.getCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw new IOException("Server returned error: " + response.getCode());
+                }
+                // recorded once .z01 answers
+                split = true;
+            }
+        }
+
+        if (!split) {
+            fetchPart(helper.getZipUrl(path), partFile(0), start(0, null));
+            return;
+        }
+
+        fetchParts();
+    }
+
+    private void fetchParts() throws IOException {
+        cancelled = false;
+        lastPart = Integer.MAX_VALUE;
+        int next = completedParts + 1;
+        boolean notFound = false;
+        try {
+            for (int part = completedParts + 1; ; part++) {
+                for (; next < part + prefetchParts && next <= lastPart; next++) {
+                    PartFetch fetch = start(next, null);
+                    String url = helper.getPartUrl(path, next);
+                    File file = partFile(next);
+                    Helper.PART_EXECUTOR.execute(() -> fetch.run(() -> {
+                        if (!fetchPart(url, file, fetch)) {
+                            fetch.missing = true;
+                            lastPart = Math.min(lastPart, fetch.part - 1);
+                        }
+                    }));
+                }
+
+                PartFetch fetch = fetches.get(part);
+                fetch.complete();
+                if (fetch.missing) {
+                    notFound = part == 1;
+                    break;
+                }
+                synchronized (this) {
+                    completedParts = part;
+                    fetches.remove(part);
+                    storedBytes.remove(part);
+                }
+                saveState();
+            }
+        } finally {
+            cancelled = true;
+            List<PartFetch> outstanding;
+            synchronized (this) {
+                outstanding = new ArrayList<>(fetches.values());
+            }
+            for (PartFetch fetch : outstanding) {
+                fetch.await();
+            }
+            synchronized (this) {
+                fetches.clear();
+            }
+            saveState();
+        }
+        if (notFound) {
+            delete();
+            throw new IOException("Neither zip nor split parts found");
+        }
+    }
+
+    /**
+     * The server answered for the archive form in use, from now on the
+     * state is worth keeping.
+     */
+    private synchronized void confirm() throws IOException {
+        if (!known) {
+            known = true;
+            helper.setSplit(path, split);
+        }
+        saveState();
+    }
+
+    private synchronized PartFetch start(int part, ConnectionPool.Response response) throws IOException {
+        PartFetch fetch = new PartFetch(part);
+        fetch.written = response != null ? 0 : truncate(partFile(part), storedBytes.getOrDefault(part, 0L));
+        fetches.put(part, fetch);
+        return fetch;
+    }
+
+    /**
+     * @return {@code false} if there is no such part
+     */
+    private boolean fetchPart(String url, File file, PartFetch fetch) throws IOException {
+        long offset = fetch.written;
+        ConnectionPool.Response response = helper.open(url, offset);
+        switch (response.getCode()) {
+            case HttpURLConnection.HTTP_PARTIAL:
+                confirm();
+                append(response, file, 0, fetch);
+                return true;
+            case HttpURLConnection.HTTP_OK:
+                confirm();
+                append(response, file, offset, fetch);
+                return true;
+            case 416:
+                response.close();
+                if (offset > 0) {
+                    return true;
+                }
+                throw new IOException("Server returned error: 416");
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                response.close();
+                if (split && offset == 0) {
+                    return false;
+                }
+                throw new IOException("Server returned error: 404");
+            default:
+                response.close();
+                throw new IOException("Server returned error: " + response.getCode());
+        }
+    }
+
+    private void append(ConnectionPool.Response response, File file, long skip, PartFetch fetch) throws IOException {
+        try (InputStream is = response.getBody();
+             OutputStream os = new FileOutputStream(file, true)) {
+            IOUtils.skipFully(is, skip);
+
+            long expected = response.getContentLength();
+            if (expected >= 0) {
+                expected -= skip;
+            }
+
+            byte[] buffer = new byte[1 << 16];
+            long received = 0;
+            long unsaved = 0;
+            int r;
+            try {
+                while ((r = is.read(buffer)) >= 0) {
+                    if (cancelled && fetch.part > 0) {
+                        throw new InterruptedIOException("Cancelled");
+                    }
+                    os.write(buffer, 0, r);
+                    received += r;
+                    unsaved += r;
+                    fetch.advance(r);
+                    if (unsaved >= STATE_SAVE_INTERVAL) {
+                        os.flush();
+                        saveState();
+                        unsaved = 0;
+                    }
+                }
+                if (expected >= 0 && received != expected) {
+                    throw new EOFException("Connection closed after " + received + " of " + expected + " bytes");
+                }
+            } finally {
+                os.flush();
+                saveState();
+            }
+        }
+    }
+
+    public InputStream openStream() throws IOException {
+        if (!split) {
+            return new FileInputStream(partFile(0));
+        }
+
+        List<InputStream> streams = new ArrayList<>();
+        try {
+            for (int part = 1; part <= completedParts; part++) {
+                streams.add(new FileInputStream(partFile(part)));
+            }
+        } catch (IOException e) {
+            for (InputStream is : streams) {
+                IOUtils.closeQuietly(is);
+            }
+            throw e;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    public synchronized void delete() {
+        deleteParts();
+        stateFile.delete();
+        known = false;
+        completedParts = 0;
+        storedBytes.clear();
+    }
+
+    private void deleteParts() {
+        partFile(0).delete();
+        String prefix = target.getName() + ".z";
+        File[] parts = target.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".part"));
+        if (parts != null) {
+            for (File part : parts) {
+                part.delete();
+            }
+        }
+    }
+
+    private File partFile(int part) {
+        return new File(part == 0 ?
+                target.getPath() + ".part" :
+                String.format("%s.z%02d.part", target.getPath(), part));
+    }
+
+    private static long truncate(File file, long length) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() > length) {
+                raf.setLength(length);
+            }
+            return raf.length();
+        }
+    }
+
+    private synchronized void loadState() throws IOException {
+        if (known || !stateFile.exists()) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(stateFile)) {
+            properties.load(is);
+        }
+        try {
+            split = Boolean.parseBoolean(properties.getProperty("split"));
+            completedParts = Integer.parseInt(properties.getProperty("parts", "0"));
+            storedBytes.clear();
+            storedBytes.put(split ? completedParts + 1 : 0, Long.parseLong(properties.getProperty("bytes", "0")));
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith("bytes.")) {
+                    storedBytes.put(Integer.parseInt(name.substring(6)), Long.parseLong(properties.getProperty(name)));
+                }
+            }
+            known = true;
+            helper.setSplit(path, split);
+        } catch (NumberFormatException e) {
+            known = false;
+            completedParts = 0;
+            storedBytes.clear();
+        }
+    }
+
+    private synchronized void saveState() throws IOException {
+        if (!known) {
+            return;
+        }
+        for (PartFetch fetch : fetches.values()) {
+            storedBytes.put(fetch.part, fetch.written);
+        }
+        int head = split ? completedParts + 1 : 0;
+
+        Properties properties = new Properties();
+        properties.setProperty("split", String.valueOf(split));
+        properties.setProperty("parts", String.valueOf(completedParts));
+        properties.setProperty("bytes", String.valueOf(storedBytes.getOrDefault(head, 0L)));
+        for (Map.Entry<Integer, Long> e : storedBytes.entrySet()) {
+            if (e.getKey() > head && e.getValue() > 0) {
+                properties.setProperty("bytes." + e.getKey(), String.valueOf(e.getValue()));
+            }
+        }
+        try (OutputStream os = new FileOutputStream(stateFile)) {
+            properties.store(os, path);
+        }
+    }
+
+    private interface PartTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * Progress of one part file, shared between the thread writing it and
+     * the one completing the parts in order.
+     */
+    private class PartFetch {
+        final int part;
+        volatile long written;
+        boolean missing;
+        private boolean done;
+        private IOException failure;
+
+        PartFetch(int part) {
+            this.part = part;
+        }
+
+        void run(PartTask task) {
+            IOException failure = null;
+            try {
+                task.run();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+            synchronized (this) {
+                this.failure = failure;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void advance(long n) {
+            written += n;
+        }
+
+        synchronized void await() throws InterruptedIOException {
+            while (!done) {
+                waitForChange();
+            }
+        }
+
+        /**
+         * Waits until the part is complete.
+         *
+         * @throws IOException if fetching it failed
+         */
+        void complete() throws IOException {
+            await();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void waitForChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.IOException;
+
+/**
+ * Per-file events of {@link VersionSwitcher} operations. Methods are called
+ * from worker threads, possibly at the same time.
+ */
+public interface ProgressListener {
+    ProgressListener NONE = new ProgressListener() {
+    };
+
+    /**
+     * @param path   manifest path
+     * @param tier   the tier that decided the result
+     * @param cached whether the {@link VerificationIndex} decided it
+     */
+    default void fileChecked(InstallTarget target, String path, boolean needUpdate, VerifyTier tier, boolean cached) {
+    }
+
+    /**
+     * @param fromStore whether the file came from the {@link ObjectStore}
+     * @param linked    whether it was installed from another target
+     */
+    default void fileUpdated(InstallTarget target, String path, boolean fromStore, boolean linked) {
+    }
+
+    /**
+     * @param target {@code null} for exports
+     */
+    default void fileFailed(InstallTarget target, String path, IOException e) {
+    }
+
+    /**
+     * A file the planned version no longer has, found in {@code target}.
+     *
+     * @param deleted whether it was deleted, see {@link VersionSwitcher#setDeleteRemoved}
+     */
+    default void fileRemoved(InstallTarget target, String path, boolean deleted) {
+    }
+
+    default void fileExported(String path) {
+    }
+
+    /**
+     * Problems that don't fail a file, e.g. a store that couldn't be updated.
+     */
+    default void message(String message) {
+    }
+}
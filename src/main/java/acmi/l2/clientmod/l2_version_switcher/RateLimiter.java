@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket shared by all transfers. Up to one second worth of bytes may
+ * be consumed in a burst.
+ */
+public class RateLimiter {
+    private final long bytesPerSecond;
+    private final LongSupplier nanoTime;
+    private long available;
+    private long lastRefill;
+
+    public RateLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, System::nanoTime);
+    }
+
+    RateLimiter(long bytesPerSecond, LongSupplier nanoTime) {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.nanoTime = nanoTime;
+        this.available = bytesPerSecond;
+        this.lastRefill = nanoTime.getAsLong();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes {@code bytes} tokens, sleeping while the bucket is in debt.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = nanoTime.getAsLong();
+            // in double: elapsed nanos times the rate overflows a long after a long idle
+            double refill = (double) (now - lastRefill) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            available = (long) Math.min(bytesPerSecond, available + refill);
+            lastRefill = now;
+            available -= bytes;
+            waitNanos = available < 0 ? -available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
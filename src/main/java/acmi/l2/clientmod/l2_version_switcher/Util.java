@@ -23,43 +23,77 @@ package acmi.l2.clientmod.l2_version_switcher;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.NullOutputStream;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
 import org.tukaani.xz.LZMAInputStream;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 public class Util {
-    public static List<FileInfo> getFileInfo(InputStream is) {
-        return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_16))
-                .lines()
-                .map(FileInfo::parse)
-                .collect(Collectors.toList());
+    /**
+     * Shared decoder buffers, always handed out zeroed: LZMA streams may
+     * read the dictionary before their first byte, so one left over from a
+     * previous file makes valid data fail as corrupt.
+     */
+    private static final ArrayCache DECODER_CACHE = new BasicArrayCache() {
+        @Override
+        public byte[] getByteArray(int size, boolean fillWithZeros) {
+            return super.getByteArray(size, true);
+        }
+    };
+
+    public static List<FileInfo> getFileInfo(InputStream is) throws IOException {
+        return FileInfoMap.read(is).toList();
     }
 
+    /**
+     * The decoder takes its dictionary from a shared {@link BasicArrayCache}
+     * and gives it back on close, so files decoded one after another reuse
+     * buffers of up to tens of MB instead of allocating them per file.
+     */
     public static InputStream getUnzipStream(InputStream input) throws IOException {
-        return new LZMAInputStream(input);
+        return new LZMAInputStream(input, -1, DECODER_CACHE);
     }
 
     public static boolean hashEquals(File file, String hashString) throws IOException {
+        return Arrays.equals(hash(file), parseHexBinary(hashString));
+    }
+
+    public static byte[] hash(File file) throws IOException {
         try {
             MessageDigest md = MessageDigest.getInstance("sha-1");
             try (FileInputStream hashBytes = new FileInputStream(file)) {
                 DigestInputStream dis = new DigestInputStream(hashBytes, md);
                 IOUtils.copy(dis, NullOutputStream.NULL_OUTPUT_STREAM);
             }
-            byte[] hash = md.digest();
-            return Arrays.equals(hash, parseHexBinary(hashString));
+            return md.digest();
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
+    public static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
     public static byte[] parseHexBinary(String s) {
         int len = s.length();
 
@@ -82,6 +116,93 @@ public class Util {
         return out;
     }
 
+    public static String toHexBinary(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public static long parseSize(String s) {
+        s = s.trim().toUpperCase();
+        long multiplier = 1;
+        if (s.endsWith("B")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        if (s.endsWith("K")) {
+            multiplier = 1L << 10;
+        } else if (s.endsWith("M")) {
+            multiplier = 1L << 20;
+        } else if (s.endsWith("G")) {
+            multiplier = 1L << 30;
+        } else if (s.endsWith("T")) {
+            multiplier = 1L << 40;
+        }
+        if (multiplier != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return (long) (Double.parseDouble(s) * multiplier);
+    }
+
+    /**
+     * Compiles a {@code *}/{@code ?} wildcard the way
+     * {@code FilenameUtils.wildcardMatch(path, wildcard, IOCase.INSENSITIVE)}
+     * matches it, with {@code /} and {@code \} matching either separator.
+     */
+    public static Pattern wildcardPattern(String wildcard) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char ch : wildcard.toCharArray()) {
+            if (ch != '*' && ch != '?' && ch != '/' && ch != '\\') {
+                literal.append(ch);
+                continue;
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+            }
+            regex.append(ch == '*' ? ".*" : ch == '?' ? "." : "[/\\\\]");
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    /**
+     * Replaces {@code target} with {@code source}, atomically where the file
+     * system allows it.
+     */
+    public static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public static void linkOrCopy(Path source, Path link) throws IOException {
+        try {
+            Files.createLink(link, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replaces {@code target} with a hard link to, or a copy of,
+     * {@code source}. The target is never written in place, so files that
+     * share an inode with it are left alone.
+     */
+    public static void install(Path source, Path target) throws IOException {
+        Path tmp = Paths.get(target + ".tmp");
+        Files.deleteIfExists(tmp);
+        linkOrCopy(source, tmp);
+        move(tmp, target);
+    }
+
     private static int hexToBin(char ch) {
         if ('0' <= ch && ch <= '9') {
             return ch - '0';
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the SHA-1 of every file verified in an install together with
+ * the metadata (size, mtime, file key) it had at that moment, so unchanged
+ * files don't have to be read again on the next run.
+ * <p>
+ * Entries may also carry a {@link HashEngine#sample sample fingerprint} taken
+ * from the verified content, used by {@link VerifyTier#SAMPLED} checks.
+ */
+public class VerificationIndex {
+    public static final String FILE_NAME = ".l2_version_switcher.idx";
+
+    private static final int MAGIC = 0x4C32_5649; // "L2VI"
+    private static final int FORMAT_VERSION = 2;
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean modified;
+
+    private VerificationIndex(File file) {
+        this.file = file;
+    }
+
+    public static VerificationIndex load(File file) throws IOException {
+        VerificationIndex index = new VerificationIndex(file);
+        if (!file.exists()) {
+            return index;
+        }
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (dis.readInt() != MAGIC) {
+                return index;
+            }
+            int version = dis.readInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                return index;
+            }
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = dis.readUTF();
+                long size = dis.readLong();
+                long modified = dis.readLong();
+                int fileKey = dis.readInt();
+                byte[] hash = new byte[20];
+                dis.readFully(hash);
+                byte[] sample = null;
+                if (version >= 2 && dis.readBoolean()) {
+                    sample = new byte[20];
+                    dis.readFully(sample);
+                }
+                index.entries.put(path, new Entry(size, modified, fileKey, hash, sample));
+            }
+        } catch (EOFException e) {
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    public static VerificationIndex empty(File file) {
+        return new VerificationIndex(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isVerified(String path, BasicFileAttributes attributes, byte[] hash) {
+        Entry entry = entries.get(path);
+        return entry != null &&
+                entry.matches(attributes) &&
+                Arrays.equals(entry.hash, hash);
+    }
+
+    /**
+     * @return the sample fingerprint recorded for {@code path} if it was
+     * verified with this size and hash, {@code null} otherwise
+     */
+    public byte[] getSample(String path, long size, byte[] hash) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.size == size && Arrays.equals(entry.hash, hash) ? entry.sample : null;
+    }
+
+    /**
+     * Records a verified file, keeping the sample fingerprint of an entry
+     * with the same content.
+     */
+    public void put(String path, BasicFileAttributes attributes, byte[] hash) {
+        put(path, attributes, hash, getSample(path, attributes.size(), hash));
+    }
+
+    public void put(String path, BasicFileAttributes attributes, byte[] hash, byte[] sample) {
+        entries.put(path, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey(attributes), hash, sample));
+        modified = true;
+    }
+
+    public void remove(String path) {
+        if (entries.remove(path) != null) {
+            modified = true;
+        }
+    }
+
+    public void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            Map<String, Entry> snapshot = new HashMap<>(entries);
+            dos.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                dos.writeUTF(e.getKey());
+                dos.writeLong(entry.size);
+                dos.writeLong(entry.modified);
+                dos.writeInt(entry.fileKey);
+                dos.write(entry.hash);
+                dos.writeBoolean(entry.sample != null);
+                if (entry.sample != null) {
+                    dos.write(entry.sample);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        modified = false;
+    }
+
+    private static int fileKey(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key == null ? 0 : key.hashCode();
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final int fileKey;
+        final byte[] hash;
+        final byte[] sample;
+
+        Entry(long size, long modified, int fileKey, byte[] hash, byte[] sample) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.hash = hash;
+            this.sample = sample;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() &&
+                    modified == attributes.lastModifiedTime().toMillis() &&
+                    fileKey == fileKey(attributes);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the versions a host has by probing their manifest URLs with
+ * {@link Helper#isAvailable()}, a round of probes at a time.
+ * <p>
+ * {@link #findLatest} gallops up from the last known version, probing
+ * {@code n+1, n+2, n+4, ...} at once, then narrows the gap between the
+ * highest available and the lowest missing probe with evenly spaced probes.
+ * That assumes versions aren't missing in between, which holds for patch
+ * servers that keep every version they published.
+ * <p>
+ * Available versions are remembered in a cache file for {@link #DEFAULT_TTL},
+ * missing ones are always probed again, as they are where new patches
+ * show up.
+ */
+public class VersionScanner {
+    public static final File DEFAULT_CACHE_FILE = new File(new File(System.getProperty("user.home"), ".l2_version_switcher"), "versions");
+    public static final long DEFAULT_TTL = TimeUnit.DAYS.toMillis(1);
+    public static final int DEFAULT_PROBES = 16;
+
+    private static final int MAGIC = 0x4C32_5653; // "L2VS"
+    private static final int FORMAT_VERSION = 1;
+
+    private final VersionSwitcher switcher;
+    private final File cacheFile;
+    private final long ttl;
+    private final Map<String, Long> available = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private int probes = DEFAULT_PROBES;
+
+    /**
+     * @param cacheFile {@code null} to probe everything
+     */
+    public VersionScanner(VersionSwitcher switcher, File cacheFile, long ttl) {
+        this.switcher = switcher;
+        this.cacheFile = cacheFile;
+        this.ttl = ttl;
+
+        if (cacheFile != null && cacheFile.exists()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+                if (dis.readInt() == MAGIC && dis.readInt() == FORMAT_VERSION) {
+                    int count = dis.readInt();
+                    for (int i = 0; i < count; i++) {
+                        available.put(dis.readUTF(), dis.readLong());
+                    }
+                }
+            } catch (IOException e) {
+                // a broken cache only costs probes
+                available.clear();
+            }
+        }
+    }
+
+    /**
+     * Probes sent per round.
+     */
+    public void setProbes(int probes) {
+        if (probes < 1) {
+            throw new IllegalArgumentException("probes must be positive: " + probes);
+        }
+        this.probes = probes;
+    }
+
+    /**
+     * Requests sent so far; cached versions cost none.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public CompletableFuture<Boolean> isAvailable(String host, String game, int version) {
+        String key = key(host, game, version);
+        Long checked = available.get(key);
+        if (checked != null && System.currentTimeMillis() - checked < ttl) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        requests.increment();
+        return switcher.isAvailable(switcher.getHelper(host, game, version)).thenApply(a -> {
+            if (a) {
+                available.put(key, System.currentTimeMillis());
+            } else {
+                available.remove(key);
+            }
+            return a;
+        });
+    }
+
+    /**
+     * Probes every version of {@code from..to} at once.
+     *
+     * @return available versions, ascending
+     */
+    public CompletableFuture<int[]> scan(String host, String game, int from, int to) {
+        int[] versions = IntStream.rangeClosed(from, to).toArray();
+        return probe(host, game, versions).thenApply(result -> IntStream.range(0, versions.length)
+                .filter(i -> result[i])
+                .map(i -> versions[i])
+                .toArray());
+    }
+
+    /**
+     * @param start lowest version to look at; the latest cached version,
+     *              if higher, is taken as known
+     * @return latest available version, 0 if none was found
+     */
+    public CompletableFuture<Integer> findLatest(String host, String game, int start) {
+        return CompletableFuture.supplyAsync(() -> latest(host, game, start), switcher.getExecutor());
+    }
+
+    public void save() throws IOException {
+        if (cacheFile == null) {
+            return;
+        }
+        Files.createDirectories(cacheFile.getAbsoluteFile().getParentFile().toPath());
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            long now = System.currentTimeMillis();
+            Map<String, Long> snapshot = new HashMap<>(available);
+            snapshot.values().removeIf(checked -> now - checked >= ttl);
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(snapshot.size());
+            for (Map.Entry<String, Long> e : snapshot.entrySet()) {
+                dos.writeUTF(e.getKey());
+                dos.writeLong(e.getValue());
+            }
+        }
+        Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private int latest(String host, String game, int start) {
+        int lo = Math.max(latestCached(host, game), start - 1);
+        boolean known = lo >= start;
+        int hi = 0;
+
+        // gallop until a probe above the highest available one misses
+        while (hi == 0) {
+            int base = lo + 1;
+            int[] versions = IntStream.range(0, Math.min(probes, 31))
+                    .mapToLong(i -> (long) base + (1L << i) - 1)
+                    .filter(v -> v <= Integer.MAX_VALUE)
+                    .mapToInt(v -> (int) v)
+                    .toArray();
+            if (versions.length == 0) {
+                break;
+            }
+            boolean[] result = probe(host, game, versions).join();
+            for (int i = 0; i < versions.length; i++) {
+                if (result[i] && versions[i] > lo) {
+                    lo = versions[i];
+                    known = true;
+                }
+            }
+            hi = lowestMissingAbove(versions, result, lo);
+        }
+        if (!known) {
+            return 0;
+        }
+
+        while (hi - lo > 1) {
+            int from = lo, gap = hi - lo, n = Math.min(probes, gap - 1);
+            int[] versions = IntStream.rangeClosed(1, n)
+                    .map(j -> (int) (from + (long) gap * j / (n + 1)))
+                    .distinct()
+                    .toArray();
+            boolean[] result = probe(host, game, versions).join();
+            for (int i = 0; i < versions.length; i++) {
+                if (result[i] && versions[i] > lo) {
+                    lo = versions[i];
+                }
+            }
+            int missing = lowestMissingAbove(versions, result, lo);
+            if (missing != 0 && missing < hi) {
+                hi = missing;
+            }
+        }
+        return lo;
+    }
+
+    private int latestCached(String host, String game) {
+        String prefix = key(host, game, 0);
+        prefix = prefix.substring(0, prefix.length() - 1);
+        long now = System.currentTimeMillis();
+        int latest = 0;
+        for (Map.Entry<String, Long> e : available.entrySet()) {
+            if (e.getKey().startsWith(prefix) && now - e.getValue() < ttl) {
+                latest = Math.max(latest, Integer.parseInt(e.getKey().substring(prefix.length())));
+            }
+        }
+        return latest;
+    }
+
+    private CompletableFuture<boolean[]> probe(String host, String game, int[] versions) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(versions.length);
+        for (int version : versions) {
+            futures.add(isAvailable(host, game, version));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            boolean[] result = new boolean[versions.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = futures.get(i).join();
+            }
+            return result;
+        });
+    }
+
+    private static int lowestMissingAbove(int[] versions, boolean[] result, int version) {
+        int lowest = 0;
+        for (int i = 0; i < versions.length; i++) {
+            if (!result[i] && versions[i] > version && (lowest == 0 || versions[i] < lowest)) {
+                lowest = versions[i];
+            }
+        }
+        return lowest;
+    }
+
+    private static String key(String host, String game, int version) {
+        return host + "/" + game + "/" + version;
+    }
+}
@@ -0,0 +1,816 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Switches installs between versions in three asynchronous steps:
+ * {@link #plan} selects the files of a version to look at, {@link #verify}
+ * finds which of them are outdated in each {@link InstallTarget}, and
+ * {@link #apply} updates those.
+ * <p>
+ * A switcher keeps its connection pool, executors, object store and parsed
+ * manifests between operations, so a long running process pays for them
+ * once. Executors not set explicitly are created on first use and shut
+ * down by {@link #close()}. Cancelling a returned future stops work that
+ * hasn't started; files already being written are finished.
+ * {@link #getMetrics() Metrics} describe the operation started last.
+ */
+public class VersionSwitcher implements Closeable {
+    private final ConnectionPool pool;
+    private final Map<String, Helper> helpers = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<FileInfoMap>> manifests = new ConcurrentHashMap<>();
+    private final List<ExecutorService> owned = new ArrayList<>();
+
+    private ExecutorService executor;
+    private HashEngine hashEngine;
+    private ExecutorService decodeExecutor;
+    private ExecutorService writeExecutor;
+    private ObjectStore store;
+    private int maxConcurrency = DownloadScheduler.DEFAULT_MAX_CONCURRENCY;
+    private int decodeThreads = Runtime.getRuntime().availableProcessors();
+    private boolean deleteRemoved;
+    private volatile Metrics metrics = new Metrics(new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM), false);
+    private volatile ProgressListener listener = ProgressListener.NONE;
+
+    public VersionSwitcher(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Runs planning and the bookkeeping of operations.
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = own(Executors.newCachedThreadPool(Util.daemonThreadFactory("switcher")));
+        }
+        return executor;
+    }
+
+    public synchronized void setHashEngine(HashEngine hashEngine) {
+        this.hashEngine = hashEngine;
+    }
+
+    public synchronized HashEngine getHashEngine() {
+        if (hashEngine == null) {
+            hashEngine = new HashEngine();
+        }
+        return hashEngine;
+    }
+
+    /**
+     * Runs LZMA decoding of downloads, see {@link #setDecodeThreads}.
+     */
+    public synchronized void setDecodeExecutor(ExecutorService decodeExecutor) {
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    public synchronized ExecutorService getDecodeExecutor() {
+        if (decodeExecutor == null) {
+            decodeExecutor = own(Executors.newFixedThreadPool(decodeThreads, Util.daemonThreadFactory("decode")));
+        }
+        return decodeExecutor;
+    }
+
+    public synchronized void setWriteExecutor(ExecutorService writeExecutor) {
+        this.writeExecutor = writeExecutor;
+    }
+
+    public synchronized ExecutorService getWriteExecutor() {
+        if (writeExecutor == null) {
+            writeExecutor = own(Executors.newCachedThreadPool(Util.daemonThreadFactory("write")));
+        }
+        return writeExecutor;
+    }
+
+    /**
+     * @param store shares files between versions and targets, {@code null}
+     *              for none
+     */
+    public synchronized void setObjectStore(ObjectStore store) {
+        this.store = store;
+    }
+
+    public synchronized ObjectStore getObjectStore() {
+        return store;
+    }
+
+    public synchronized void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Files decoded at once, used to size the default decode executor and
+     * to bound bundle imports, which decode on the download threads.
+     */
+    public synchronized void setDecodeThreads(int decodeThreads) {
+        if (decodeThreads < 1) {
+            throw new IllegalArgumentException("decodeThreads must be positive: " + decodeThreads);
+        }
+        this.decodeThreads = decodeThreads;
+    }
+
+    /**
+     * Whether {@link #apply} deletes files the planned version no longer
+     * has; otherwise they are only reported.
+     */
+    public synchronized void setDeleteRemoved(boolean deleteRemoved) {
+        this.deleteRemoved = deleteRemoved;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setListener(ProgressListener listener) {
+        this.listener = listener != null ? listener : ProgressListener.NONE;
+    }
+
+    /**
+     * @return a helper sharing this switcher's pool; helpers are kept, as
+     * they remember which archives are split
+     */
+    public Helper getHelper(String host, String game, int version) {
+        return helpers.computeIfAbsent(host + "/" + game + "/" + version, k -> new Helper(host, game, version, pool));
+    }
+
+    public CompletableFuture<Boolean> isAvailable(Helper helper) {
+        return supply(helper::isAvailable);
+    }
+
+    /**
+     * Manifest of {@code helper}'s version, parsed once per switcher.
+     */
+    public CompletableFuture<FileInfoMap> getFileInfoMap(Helper helper) {
+        String url = helper.getFileInfoMapZipUrl();
+        CompletableFuture<FileInfoMap> map = manifests.computeIfAbsent(url, k -> supply(helper::getFileInfoMap));
+        map.whenComplete((m, t) -> {
+            if (t != null) {
+                manifests.remove(url, map);
+            }
+        });
+        return map;
+    }
+
+    /**
+     * @param from   version the installs are at, only files changed since
+     *               are planned; 0 for all files
+     * @param filter wildcard over manifest paths, {@code null} for all
+     */
+    public CompletableFuture<Plan> plan(Helper helper, int from, String filter) {
+        CompletableFuture<FileInfoMap> fromMap = from > 0 ?
+                getFileInfoMap(getHelper(helper.getHost(), helper.getGame(), from)) :
+                CompletableFuture.completedFuture(null);
+        return getFileInfoMap(helper).thenCombine(fromMap, (map, fm) -> new Plan(helper, null, map, fm, from, filter));
+    }
+
+    /**
+     * Plans the files {@code bundle} has payloads for.
+     */
+    public CompletableFuture<Plan> plan(Bundle bundle, String filter) {
+        return supply(() -> new Plan(null, bundle, bundle.getFileInfoMap(), null, bundle.getFrom(), filter));
+    }
+
+    /**
+     * Checks the planned files in every target and drops outdated ones
+     * from the targets' verification indexes.
+     */
+    public CompletableFuture<Verification> verify(Plan plan, List<InstallTarget> targets, VerifyTier mode) {
+        CompletableFuture<Verification> result = new CompletableFuture<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        result.whenComplete((v, t) -> cancelled.set(result.isCancelled()));
+
+        HashEngine hashEngine = getHashEngine();
+        Metrics metrics = this.metrics;
+        FileInfoMap map = plan.getFileInfoMap();
+        int[] files = plan.files;
+        metrics.startVerify(hashEngine, (long) files.length * targets.size());
+        getExecutor().execute(() -> {
+            try {
+                Map<Integer, List<InstallTarget>> outdated = new ConcurrentHashMap<>();
+                List<CompletableFuture<Void>> reads = new ArrayList<>();
+                for (InstallTarget target : targets) {
+                    InstallScan scan;
+                    try {
+                        scan = InstallScan.scan(target.getDir(), InstallScan.prefix(plan.getFilter()), files.length, map.size());
+                    } catch (IOException e) {
+                        target.error("Couldn't scan " + target.getDir() + ": " + e);
+                        continue;
+                    }
+                    // only files the attributes and the index can't settle are read
+                    for (int i : files) {
+                        if (cancelled.get()) {
+                            return;
+                        }
+                        long start = System.nanoTime();
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = scan.get(map.getPath(i));
+                        } catch (IOException e) {
+                            listener.message(target.describe(map.getPath(i)) + ": couldn't check hash: " + e);
+                            attributes = null;
+                        }
+                        BasicFileAttributes scanned = attributes;
+                        Boolean needUpdate = checkAttributes(target, map, i, scanned, mode, start);
+                        if (needUpdate == null) {
+                            reads.add(CompletableFuture.runAsync(() -> {
+                                if (!cancelled.get() && checkContent(target, map, i, scanned, hashEngine, mode, start)) {
+                                    outdated.computeIfAbsent(i, k -> Collections.synchronizedList(new ArrayList<>())).add(target);
+                                }
+                            }, hashEngine.getExecutor()));
+                        } else if (needUpdate) {
+                            outdated.computeIfAbsent(i, k -> Collections.synchronizedList(new ArrayList<>())).add(target);
+                        }
+                    }
+                }
+                CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).whenComplete((v, t) -> {
+                    metrics.verifyDone();
+                    if (t != null) {
+                        result.completeExceptionally(t);
+                        return;
+                    }
+                    for (Map.Entry<Integer, List<InstallTarget>> e : outdated.entrySet()) {
+                        for (InstallTarget target : e.getValue()) {
+                            target.getIndex().remove(map.getPath(e.getKey()));
+                        }
+                    }
+                    targets.forEach(InstallTarget::saveIndex);
+                    result.complete(new Verification(plan, targets, outdated));
+                });
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Updates the outdated files of a verification. Each file is fetched
+     * once, into the first target that needs it, and installed into the
+     * others from there. Files the planned version no longer has are
+     * reported and, see {@link #setDeleteRemoved}, deleted first. Failures
+     * are recorded in the targets.
+     */
+    public CompletableFuture<Void> apply(Verification verification) {
+        Plan plan = verification.getPlan();
+        Bundle bundle = plan.getBundle();
+        FileInfoMap map = plan.getFileInfoMap();
+        List<Map.Entry<Integer, List<InstallTarget>>> toUpdate = verification.getOutdated();
+        Metrics metrics = this.metrics;
+
+        DownloadScheduler scheduler;
+        boolean deleteRemoved;
+        synchronized (this) {
+            deleteRemoved = this.deleteRemoved;
+            // bundle imports decode on the scheduler's threads, so decoding bounds them
+            scheduler = bundle != null ?
+                    new DownloadScheduler(Math.min(maxConcurrency, decodeThreads), bundle::getBytesRead) :
+                    new DownloadScheduler(maxConcurrency, pool::getBytesRead);
+        }
+        if (!toUpdate.isEmpty()) {
+            metrics.startDownload(pool, scheduler, toUpdate.size(), toUpdate.stream().mapToLong(e -> map.getSize(e.getKey())).sum());
+        }
+        removeFiles(plan, verification.getTargets(), deleteRemoved);
+        ObjectStore store = getObjectStore();
+        CompletableFuture<Void> run = scheduler
+                .run(toUpdate, e -> map.getSize(e.getKey()), e -> update(plan, map.get(e.getKey()), e.getValue(), store, metrics))
+                .whenComplete((v, t) -> {
+                    verification.getTargets().forEach(InstallTarget::saveIndex);
+                    if (store != null) {
+                        try {
+                            store.save();
+                        } catch (IOException e) {
+                            listener.message("Couldn't update store " + store.getDir() + ": " + e);
+                        }
+                    }
+                });
+        return cancellable(run, scheduler::cancel);
+    }
+
+    /**
+     * Writes the manifest and the compressed payloads of the planned files
+     * to a {@link Bundle}. The bundle is written to {@code <file>.tmp} and
+     * only moved into place if every file was exported.
+     *
+     * @return number of files exported; failures are reported to the listener
+     */
+    public CompletableFuture<Integer> export(Plan plan, File file) {
+        Helper helper = plan.getHelper();
+        if (helper == null) {
+            throw new IllegalArgumentException("plan has no server to export from");
+        }
+        FileInfoMap map = plan.getFileInfoMap();
+        List<FileInfo> files = Arrays.stream(plan.files)
+                .mapToObj(map::get)
+                .collect(Collectors.toList());
+        File tmp = new File(file.getPath() + ".tmp");
+        File tmpDir = new File(file.getPath() + ".parts");
+        AtomicInteger exported = new AtomicInteger();
+        Metrics metrics = this.metrics;
+
+        Bundle.Writer writer = null;
+        DownloadScheduler scheduler;
+        try {
+            writer = new Bundle.Writer(tmp, helper.getGame(), helper.getVersion(), plan.getFrom());
+            try (ConnectionPool.Response response = helper.open(helper.getFileInfoMapZipUrl(), 0)) {
+                if (!response.isOk()) {
+                    throw new IOException("Server returned error: " + response.getCode());
+                }
+                writer.putManifest(response.getBody());
+            }
+            Files.createDirectories(tmpDir.toPath());
+            synchronized (this) {
+                scheduler = new DownloadScheduler(maxConcurrency, pool::getBytesRead);
+            }
+        } catch (IOException e) {
+            if (writer != null) {
+                IOUtils.closeQuietly(writer);
+            }
+            tmp.delete();
+            CompletableFuture<Integer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        metrics.startDownload(pool, scheduler, files.size(), files.stream().mapToLong(FileInfo::getSize).sum());
+        Bundle.Writer bundleWriter = writer;
+        CompletableFuture<Integer> run = scheduler
+                .run(files, FileInfo::getSize, fi -> {
+                    long start = System.nanoTime();
+                    File payload = File.createTempFile("payload", null, tmpDir);
+                    PartialDownload download = new PartialDownload(helper, fi.getPath(), payload);
+                    try {
+                        // payloads are kept compressed, split archives joined
+                        download.fetch();
+                        try (InputStream is = download.openStream();
+                             OutputStream os = new FileOutputStream(payload)) {
+                            IOUtils.copyLarge(is, os, new byte[Bundle.BUFFER_SIZE]);
+                        }
+                        bundleWriter.put(fi, payload);
+                        exported.incrementAndGet();
+                        metrics.fileUpdated(fi.getSize(), false, System.nanoTime() - start);
+                        listener.fileExported(fi.getPath());
+                    } catch (IOException e) {
+                        metrics.fileFailed(fi.getSize());
+                        listener.fileFailed(null, fi.getPath(), e);
+                        throw e;
+                    } finally {
+                        download.delete();
+                        payload.delete();
+                    }
+                })
+                .handle((v, t) -> {
+                    tmpDir.delete();
+                    Throwable failure = t;
+                    try {
+                        bundleWriter.close();
+                        if (failure == null && exported.get() < files.size()) {
+                            failure = new IOException(String.format("%d of %d files exported", exported.get(), files.size()));
+                        }
+                        if (failure == null) {
+                            Util.move(tmp.toPath(), file.toPath());
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    if (failure != null) {
+                        tmp.delete();
+                        throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+                    }
+                    return exported.get();
+                });
+        return cancellable(run, scheduler::cancel);
+    }
+
+    @Override
+    public void close() {
+        HashEngine hashEngine;
+        List<ExecutorService> owned;
+        synchronized (this) {
+            hashEngine = this.hashEngine;
+            owned = new ArrayList<>(this.owned);
+            this.owned.clear();
+        }
+        if (hashEngine != null) {
+            hashEngine.close();
+        }
+        owned.forEach(ExecutorService::shutdown);
+    }
+
+    private void update(Plan plan, FileInfo fi, List<InstallTarget> targets, ObjectStore store, Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        String path = fi.getPath();
+
+        List<InstallTarget> targetsToUpdate = new ArrayList<>();
+        for (InstallTarget target : targets) {
+            File folder = target.getFile(path).getParentFile();
+            if (!folder.exists() && !folder.mkdirs()) {
+                failed(target, path, new IOException("couldn't create parent dir"), "");
+            } else {
+                targetsToUpdate.add(target);
+            }
+        }
+        if (targetsToUpdate.isEmpty()) {
+            metrics.fileFailed(fi.getSize());
+            return;
+        }
+
+        HashEngine hashEngine = getHashEngine();
+        InstallTarget primary = targetsToUpdate.get(0);
+        File file = primary.getFile(path);
+        byte[] hash = Util.parseHexBinary(fi.getHash());
+        boolean fromStore = false;
+        try {
+            if (store != null && installFromStore(store, hash, fi.getSize(), file)) {
+                fromStore = true;
+            } else if (plan.getBundle() != null) {
+                Bundle.Entry entry = plan.getBundle().getEntry(path);
+                if (!entry.hashEquals(hash)) {
+                    throw new IOException("bundle has a different version of this file");
+                }
+                try (InputStream is = plan.getBundle().open(entry)) {
+                    FileUpdate.apply(is, fi, file, metrics);
+                }
+                addToStore(store, hash, file, primary.describe(path));
+            } else {
+                new FileUpdate(plan.getHelper(), fi, file, getDecodeExecutor(), getWriteExecutor(), metrics).run();
+                addToStore(store, hash, file, primary.describe(path));
+            }
+            // the content was checked either way: decoded files are hashed as
+            // they are written, store objects are hashed again if they changed
+            putVerified(primary.getIndex(), hashEngine, path, file, hash);
+            primary.updated(false);
+            listener.fileUpdated(primary, path, fromStore, false);
+        } catch (FileUpdate.FetchException e) {
+            for (InstallTarget target : targetsToUpdate) {
+                failed(target, path, e, " (partial download kept)");
+            }
+            metrics.fileFailed(fi.getSize());
+            // tells the scheduler the link is struggling
+            throw e;
+        } catch (IOException e) {
+            for (InstallTarget target : targetsToUpdate) {
+                failed(target, path, e, "");
+            }
+            metrics.fileFailed(fi.getSize());
+            return;
+        }
+
+        for (InstallTarget target : targetsToUpdate.subList(1, targetsToUpdate.size())) {
+            File copy = target.getFile(path);
+            try {
+                Util.install(file.toPath(), copy.toPath());
+                putVerified(target.getIndex(), hashEngine, path, copy, hash);
+                target.updated(true);
+                listener.fileUpdated(target, path, fromStore, true);
+            } catch (IOException e) {
+                failed(target, path, e, "");
+            }
+        }
+        metrics.fileUpdated(fi.getSize(), fromStore, System.nanoTime() - start);
+    }
+
+    private void removeFiles(Plan plan, List<InstallTarget> targets, boolean delete) {
+        FileInfoMap fromMap = plan.getFromMap();
+        int[] removed = plan.getRemoved().toArray();
+        for (InstallTarget target : targets) {
+            for (int i : removed) {
+                String path = fromMap.getPath(i);
+                File file = target.getFile(path);
+                if (!file.exists()) {
+                    continue;
+                }
+                if (!delete) {
+                    listener.fileRemoved(target, path, false);
+                } else if (file.delete()) {
+                    target.getIndex().remove(path);
+                    listener.fileRemoved(target, path, true);
+                } else {
+                    failed(target, path, new IOException("couldn't delete"), "");
+                }
+            }
+        }
+    }
+
+    private void failed(InstallTarget target, String path, IOException e, String note) {
+        target.failed(failMessage(target.describe(path), e) + note);
+        listener.fileFailed(target, path, e);
+    }
+
+    /**
+     * Settles what the scanned attributes and the verification index can.
+     *
+     * @param attributes {@code null} if the file is missing
+     * @return whether the file needs an update, {@code null} if its content
+     * has to be read
+     */
+    private Boolean checkAttributes(InstallTarget target, FileInfoMap map, int i, BasicFileAttributes attributes,
+                                    VerifyTier mode, long start) {
+        String path = map.getPath(i);
+        VerificationIndex verificationIndex = target.getIndex();
+        if (attributes == null) {
+            verificationIndex.remove(path);
+            return report(target, path, true, VerifyTier.QUICK, false, start);
+        }
+        if (!attributes.isRegularFile() || attributes.size() != map.getSize(i)) {
+            return report(target, path, true, VerifyTier.QUICK, false, start);
+        }
+
+        byte[] expected = map.getHash(i);
+        if (verificationIndex.isVerified(path, attributes, expected)) {
+            return report(target, path, false, VerifyTier.FULL, true, start);
+        }
+        if (mode == VerifyTier.SAMPLED && verificationIndex.getSample(path, attributes.size(), expected) != null) {
+            return null;
+        }
+        if (mode == VerifyTier.QUICK || mode == VerifyTier.SAMPLED && HashEngine.isSampled(attributes.size())) {
+            return report(target, path, false, VerifyTier.QUICK, false, start);
+        }
+        return null;
+    }
+
+    /**
+     * Checks the content of a file {@link #checkAttributes} couldn't settle,
+     * by sample where the index has one and by full hash otherwise.
+     */
+    private boolean checkContent(InstallTarget target, FileInfoMap map, int i, BasicFileAttributes attributes, HashEngine hashEngine,
+                                 VerifyTier mode, long start) {
+        String path = map.getPath(i);
+        File file = target.getFile(path);
+        VerificationIndex verificationIndex = target.getIndex();
+        byte[] expected = map.getHash(i);
+        byte[] sample = mode == VerifyTier.SAMPLED ? verificationIndex.getSample(path, attributes.size(), expected) : null;
+        VerifyTier tier = sample != null ? VerifyTier.SAMPLED : VerifyTier.FULL;
+
+        try {
+            boolean ok;
+            if (sample != null) {
+                ok = Arrays.equals(hashEngine.sample(file, expected), sample);
+            } else {
+                ok = Arrays.equals(hashEngine.hash(file), expected);
+                if (ok) {
+                    verificationIndex.put(path, attributes, expected, hashEngine.sample(file, expected));
+                }
+            }
+            return report(target, path, !ok, tier, false, start);
+        } catch (NoSuchFileException e) {
+            verificationIndex.remove(path);
+            return report(target, path, true, tier, false, start);
+        } catch (IOException e) {
+            listener.message(target.describe(path) + ": couldn't check hash: " + e);
+            return report(target, path, true, tier, false, start);
+        }
+    }
+
+    private boolean report(InstallTarget target, String path, boolean needUpdate, VerifyTier tier, boolean cached, long start) {
+        target.checked(needUpdate);
+        metrics.fileChecked(tier, cached, System.nanoTime() - start);
+        listener.fileChecked(target, path, needUpdate, tier, cached);
+        return needUpdate;
+    }
+
+    private static void putVerified(VerificationIndex verificationIndex, HashEngine hashEngine, String path, File file, byte[] hash) throws IOException {
+        verificationIndex.put(path, Files.readAttributes(file.toPath(), BasicFileAttributes.class), hash, hashEngine.sample(file, hash));
+    }
+
+    private boolean installFromStore(ObjectStore store, byte[] hash, long size, File file) {
+        try {
+            return store.install(hash, size, file);
+        } catch (IOException e) {
+            listener.message(file + ": couldn't install from store: " + e);
+            return false;
+        }
+    }
+
+    private void addToStore(ObjectStore store, byte[] hash, File file, String filePath) {
+        if (store == null) {
+            return;
+        }
+        try {
+            store.put(hash, file);
+        } catch (IOException e) {
+            listener.message(filePath + ": couldn't add to store: " + e);
+        }
+    }
+
+    static String failMessage(String filePath, IOException e) {
+        String msg = filePath + ": FAIL: " + e.getClass().getSimpleName();
+        if (e.getMessage() != null) {
+            msg += ": " + e.getMessage();
+        }
+        return msg;
+    }
+
+    private ExecutorService own(ExecutorService executor) {
+        owned.add(executor);
+        return executor;
+    }
+
+    private <T> CompletableFuture<T> supply(IOSupplier<T> supplier) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return supplier.get();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, getExecutor());
+    }
+
+    /**
+     * @return a future that runs {@code onCancel} when it is cancelled
+     */
+    private static <T> CompletableFuture<T> cancellable(CompletableFuture<T> future, Runnable onCancel) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((v, t) -> {
+            if (t != null) {
+                result.completeExceptionally(t);
+            } else {
+                result.complete(v);
+            }
+        });
+        result.whenComplete((v, t) -> {
+            if (result.isCancelled()) {
+                onCancel.run();
+            }
+        });
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    /**
+     * Files of a version selected for checking.
+     */
+    public static class Plan {
+        private final Helper helper;
+        private final Bundle bundle;
+        private final FileInfoMap map;
+        private final FileInfoMap fromMap;
+        private final int from;
+        private final String filter;
+        private final Pattern filterPattern;
+        private final int[] files;
+
+        Plan(Helper helper, Bundle bundle, FileInfoMap map, FileInfoMap fromMap, int from, String filter) {
+            this.helper = helper;
+            this.bundle = bundle;
+            this.map = map;
+            this.fromMap = fromMap;
+            this.from = from;
+            this.filter = filter;
+            this.filterPattern = filter != null ? Util.wildcardPattern(filter) : null;
+
+            IntStream candidates = map.indices();
+            if (bundle != null) {
+                candidates = candidates.filter(i -> bundle.getEntry(map.getPath(i)) != null);
+            } else if (fromMap != null) {
+                candidates = map.changedSince(fromMap);
+            }
+            this.files = candidates
+                    .filter(i -> matches(map.getPath(i)))
+                    .toArray();
+        }
+
+        /**
+         * @return {@code null} for bundle plans
+         */
+        public Helper getHelper() {
+            return helper;
+        }
+
+        /**
+         * @return {@code null} unless planned from a bundle
+         */
+        public Bundle getBundle() {
+            return bundle;
+        }
+
+        public FileInfoMap getFileInfoMap() {
+            return map;
+        }
+
+        /**
+         * @return manifest of the version planned from, {@code null} if all
+         * files are planned
+         */
+        public FileInfoMap getFromMap() {
+            return fromMap;
+        }
+
+        /**
+         * @return version the plan starts from, 0 for all files
+         */
+        public int getFrom() {
+            return from;
+        }
+
+        public String getFilter() {
+            return filter;
+        }
+
+        public boolean matches(String path) {
+            return filterPattern == null || filterPattern.matcher(path).matches();
+        }
+
+        /**
+         * @return manifest indexes of the planned files
+         */
+        public int[] getFiles() {
+            return files.clone();
+        }
+
+        /**
+         * @return indexes into {@link #getFromMap()} of files the planned
+         * version no longer has
+         */
+        public IntStream getRemoved() {
+            if (fromMap == null) {
+                return IntStream.empty();
+            }
+            return fromMap.removedIn(map).filter(i -> matches(fromMap.getPath(i)));
+        }
+    }
+
+    /**
+     * Outcome of {@link #verify}: the targets each outdated file has to be
+     * updated in.
+     */
+    public static class Verification {
+        private final Plan plan;
+        private final List<InstallTarget> targets;
+        private final List<Map.Entry<Integer, List<InstallTarget>>> outdated;
+
+        Verification(Plan plan, List<InstallTarget> targets, Map<Integer, List<InstallTarget>> outdated) {
+            this.plan = plan;
+            this.targets = Collections.unmodifiableList(new ArrayList<>(targets));
+            this.outdated = new ArrayList<>(outdated.entrySet());
+            // the first target that needs a file gets it fetched, the others link it
+            for (Map.Entry<Integer, List<InstallTarget>> e : this.outdated) {
+                e.getValue().sort(Comparator.comparingInt(targets::indexOf));
+            }
+        }
+
+        public Plan getPlan() {
+            return plan;
+        }
+
+        public List<InstallTarget> getTargets() {
+            return targets;
+        }
+
+        /**
+         * @return manifest index and outdated targets of every file to update
+         */
+        public List<Map.Entry<Integer, List<InstallTarget>>> getOutdated() {
+            return Collections.unmodifiableList(outdated);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+    private static final int REQUESTS = 200;
+    private static final int THREADS = 8;
+
+    private StubServer server;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.put("/small", StubServer.random(4096, 1));
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void reusesConnections() throws Exception {
+        ConnectionPool pool = new ConnectionPool(4);
+        fetch(pool, REQUESTS);
+
+        assertEquals(REQUESTS, server.getRequests());
+        assertTrue("connections: " + server.getConnections(), server.getConnections() <= REQUESTS / 10);
+        assertEquals(REQUESTS * 4096L, pool.getBytesRead());
+    }
+
+    @Test
+    public void limitsConcurrentRequestsPerHost() throws Exception {
+        server.put("/slow", StubServer.random(1 << 16, 2));
+        server.setBytesPerSecond(1 << 20);
+        ConnectionPool pool = new ConnectionPool(3);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            futures.add(executor.submit(() -> get(pool, "/slow")));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+
+        assertEquals(3, server.getMaxActive());
+    }
+
+    /**
+     * With 20 ms of connection setup, as to a server some distance away,
+     * keep-alive pays it once per connection instead of once per request.
+     */
+    @Test
+    public void keepAliveRaisesRequestRate() throws Exception {
+        server.setConnectDelay(20);
+        ConnectionPool pool = new ConnectionPool(THREADS);
+
+        server.setKeepAlive(false);
+        double closing = fetch(pool, REQUESTS);
+        server.setKeepAlive(true);
+        fetch(pool, THREADS);
+        double keepAlive = fetch(pool, REQUESTS);
+
+        System.out.println(String.format(Locale.ROOT, "keep-alive %.0f requests/s, connection per request %.0f requests/s", keepAlive, closing));
+        assertTrue(String.format(Locale.ROOT, "%.0f vs %.0f requests/s", keepAlive, closing), keepAlive > closing * 3);
+    }
+
+    /**
+     * @return requests per second
+     */
+    private double fetch(ConnectionPool pool, int requests) throws Exception {
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(executor.submit(() -> get(pool, "/small")));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        return requests * 1e9 / (System.nanoTime() - start);
+    }
+
+    private Void get(ConnectionPool pool, String path) throws IOException {
+        try (ConnectionPool.Response response = pool.get("http://" + server.getHost() + path, 0)) {
+            assertEquals(200, response.getCode());
+            IOUtils.toByteArray(response.getBody());
+        }
+        return null;
+    }
+}
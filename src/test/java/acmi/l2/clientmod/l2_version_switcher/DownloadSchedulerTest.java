@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DownloadSchedulerTest {
+    private static final List<Integer> ITEMS = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8);
+
+    @Test
+    public void halvesLimitOnIOException() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(16, () -> 0);
+        scheduler.run(ITEMS, i -> i, i -> {
+            if (i == 8) {
+                throw new IOException("reset");
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals(DownloadScheduler.INITIAL_CONCURRENCY / 2, scheduler.getLimit());
+    }
+
+    @Test
+    public void failsOnOtherExceptions() throws Exception {
+        DownloadScheduler scheduler = new DownloadScheduler(16, () -> 0);
+        AtomicInteger ran = new AtomicInteger();
+        IllegalStateException bug = new IllegalStateException("bug");
+        try {
+            scheduler.run(ITEMS, i -> i, i -> {
+                ran.incrementAndGet();
+                if (i == 8) {
+                    throw bug;
+                }
+            }).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(bug, e.getCause());
+        }
+        assertEquals(ITEMS.size(), ran.get());
+        assertEquals(DownloadScheduler.INITIAL_CONCURRENCY, scheduler.getLimit());
+    }
+}
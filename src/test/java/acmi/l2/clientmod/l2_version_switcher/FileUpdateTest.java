@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class FileUpdateTest {
+    private static final String PATH = "system/Engine.u";
+    private static final byte[] CONTENT = StubServer.random(4 << 20, 1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private ExecutorService decodeExecutor;
+    private ExecutorService writeExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        decodeExecutor = Executors.newSingleThreadExecutor();
+        writeExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        decodeExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void updatesSplitFile() throws IOException {
+        server.putVersion("g", 1, Collections.singletonMap(PATH, CONTENT), 3);
+        File target = new File(folder.getRoot(), "Engine.u");
+        update(new ConnectionPool(2), target);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+        assertArrayEquals(new String[]{"Engine.u"}, folder.getRoot().list());
+    }
+
+    @Test
+    public void fetchesWhileDecodeThreadsAreBusy() throws Exception {
+        // one archive, larger than the pipe a fetch used to write into
+        server.putVersion("g", 1, Collections.singletonMap(PATH, CONTENT), 1);
+        CountDownLatch busy = new CountDownLatch(1);
+        decodeExecutor.execute(() -> {
+            try {
+                busy.await();
+            } catch (InterruptedException ignore) {
+            }
+        });
+
+        ConnectionPool pool = new ConnectionPool(1);
+        File target = new File(folder.getRoot(), "Engine.u");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> update = executor.submit(() -> {
+                update(pool, target);
+                return null;
+            });
+            // the whole archive arrives, and the connection is free again, before decoding starts
+            long expected = server.get("/g/1/Patch/FileInfoMap_g_1.dat.zip").length +
+                    server.get("/g/1/Patch/Zip/" + PATH + ".zip").length;
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.getBytesRead() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(expected, pool.getBytesRead());
+            Future<Integer> probe = executor.submit(() -> {
+                try (ConnectionPool.Response response = pool.head("http://" + server.getHost() + "/")) {
+                    return response.getCode();
+                }
+            });
+            assertEquals(404, (int) probe.get(10, TimeUnit.SECONDS));
+            assertFalse(update.isDone());
+
+            busy.countDown();
+            update.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void discardsBadData() throws IOException {
+        server.putVersion("g", 1, Collections.singletonMap(PATH, StubServer.random(4096, 2)), 1);
+        server.put("/g/1/Patch/Zip/" + PATH + ".zip", StubServer.lzma(StubServer.random(4096, 3)));
+
+        File target = new File(folder.getRoot(), "Engine.u");
+        Helper helper = new Helper(server.getHost(), "g", 1, new ConnectionPool(2));
+        FileInfo fi = helper.getFileInfoMap().get(0);
+        try {
+            new FileUpdate(helper, fi, target, decodeExecutor, writeExecutor).run();
+            fail();
+        } catch (FileUpdate.FetchException e) {
+            throw e;
+        } catch (IOException e) {
+            assertEquals("hash mismatch", e.getMessage());
+        }
+        assertArrayEquals(new String[0], folder.getRoot().list());
+    }
+
+    private void update(ConnectionPool pool, File target) throws IOException {
+        Helper helper = new Helper(server.getHost(), "g", 1, pool);
+        FileInfo fi = helper.getFileInfoMap().get(0);
+        new FileUpdate(helper, fi, target, decodeExecutor, writeExecutor).run();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class InstallScanTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void walkFollowsLinkedDirectories() throws IOException {
+        File install = folder.newFolder("install");
+        File shared = folder.newFolder("shared");
+        Files.write(new File(shared, "Engine.u").toPath(), new byte[10]);
+        try {
+            Files.createSymbolicLink(new File(install, "System").toPath(), shared.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Assume.assumeNoException(e);
+        }
+
+        InstallScan walked = InstallScan.scan(install, "", 1, 1);
+        assertNotNull(walked.get("System\\Engine.u"));
+        assertEquals(10, walked.get("System\\Engine.u").size());
+    }
+
+    @Test
+    public void walkAndLookupAgreeOnCase() throws IOException {
+        File install = folder.newFolder("install");
+        Path system = Files.createDirectory(new File(install, "System").toPath());
+        Files.write(system.resolve("Engine.u"), new byte[10]);
+
+        InstallScan walked = InstallScan.scan(install, "", 1, 1);
+        InstallScan perFile = InstallScan.scan(install, "", 1, Integer.MAX_VALUE);
+        for (String path : new String[]{"System\\Engine.u", "system\\engine.u", "SYSTEM\\ENGINE.U"}) {
+            assertEquals(path, perFile.get(path) != null, walked.get(path) != null);
+        }
+        assertNotNull(walked.get("System\\Engine.u"));
+        assertEquals(InstallScan.isCaseInsensitive(install.toPath()), walked.get("system\\engine.u") != null);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class MirrorServerTest {
+    private static final String PATH = "/g/1/Patch/Zip/system/Engine.u.zip";
+    private static final byte[] BODY = StubServer.random(256 * 1024, 1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer upstream;
+    private MirrorServer mirror;
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        upstream = new StubServer();
+        upstream.put(PATH, BODY);
+        mirror = new MirrorServer(upstream.getHost(), folder.newFolder("mirror"), new ConnectionPool(4));
+        mirror.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        pool = new ConnectionPool(8);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mirror.stop();
+        upstream.close();
+    }
+
+    @Test
+    public void servesRanges() throws IOException {
+        assertArrayEquals(BODY, get(PATH));
+
+        try (ConnectionPool.Response response = pool.open("GET", url(PATH), 100, 199)) {
+            assertEquals(206, response.getCode());
+            assertEquals("bytes 100-199/" + BODY.length, response.getHeader("Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(BODY, 100, 200), IOUtils.toByteArray(response.getBody()));
+        }
+        try (ConnectionPool.Response response = pool.open("GET", url(PATH), BODY.length, BODY.length + 10)) {
+            assertEquals(416, response.getCode());
+            assertEquals("bytes */" + BODY.length, response.getHeader("Content-Range"));
+        }
+        assertEquals(1, upstream.getHits("GET", PATH));
+    }
+
+    @Test
+    public void remembersNotFound() throws IOException {
+        String path = "/g/1/Patch/Zip/system/Engine.u.z01";
+        for (int i = 0; i < 3; i++) {
+            try (ConnectionPool.Response response = pool.get(url(path), 0)) {
+                assertEquals(404, response.getCode());
+            }
+        }
+        assertEquals(1, upstream.getHits("GET", path));
+    }
+
+    @Test
+    public void coalescesConcurrentMisses() throws Exception {
+        upstream.setBytesPerSecond(1 << 20);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> get(PATH)));
+            }
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(BODY, result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, upstream.getHits("GET", PATH));
+        assertEquals(1, mirror.getUpstreamFetches());
+        assertEquals(7, mirror.getCoalesced() + mirror.getHits());
+    }
+
+    @Test
+    public void rejectsPathTraversal() throws IOException {
+        File secret = folder.newFile("secret");
+        for (String path : new String[]{"/../secret", "/g/../../secret", "/%2e%2e/secret", "/g\\..\\..\\secret"}) {
+            assertEquals(path, 400, rawStatus(path));
+        }
+        assertTrue(secret.exists());
+        assertEquals(0, upstream.getRequests());
+    }
+
+    @Test
+    public void forwardsHeadOnMiss() throws IOException {
+        try (ConnectionPool.Response response = pool.head(url(PATH))) {
+            assertEquals(200, response.getCode());
+            assertEquals(BODY.length, response.getContentLength());
+        }
+        String missing = "/g/1/Patch/Zip/system/Core.u.zip";
+        try (ConnectionPool.Response response = pool.head(url(missing))) {
+            assertEquals(404, response.getCode());
+        }
+        try (ConnectionPool.Response response = pool.get(url(missing), 0)) {
+            assertEquals(404, response.getCode());
+        }
+        assertEquals(0, upstream.getHits("GET", PATH));
+        assertEquals(1, upstream.getHits("HEAD", PATH));
+        assertEquals(0, upstream.getHits("GET", missing));
+        assertEquals(0, mirror.getUpstreamFetches());
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mirror.getPort() + path;
+    }
+
+    private byte[] get(String path) throws IOException {
+        try (ConnectionPool.Response response = pool.get(url(path), 0)) {
+            assertEquals(200, response.getCode());
+            return IOUtils.toByteArray(response.getBody());
+        }
+    }
+
+    /**
+     * Status of a request sent as is, clients would normalize the path.
+     */
+    private int rawStatus(String path) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mirror.getPort())) {
+            OutputStream os = socket.getOutputStream();
+            os.write(("GET " + path + " HTTP/1.1\r\nHost: mirror\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            os.flush();
+            String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            return Integer.parseInt(status.split(" ")[1]);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+public class ObjectStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void installsStoredObject() throws IOException {
+        ObjectStore store = new ObjectStore(folder.newFolder("store"));
+        byte[] data = StubServer.random(10000, 1);
+        byte[] hash = StubServer.sha1(data);
+        File installed = write(folder.newFile("a.u"), data);
+        store.put(hash, installed);
+
+        File target = new File(folder.getRoot(), "b.u");
+        assertTrue(store.install(hash, data.length, target));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void dropsObjectEditedThroughInstall() throws IOException {
+        ObjectStore store = new ObjectStore(folder.newFolder("store"));
+        byte[] data = StubServer.random(10000, 2);
+        byte[] hash = StubServer.sha1(data);
+        File installed = write(folder.newFile("a.u"), data);
+        store.put(hash, installed);
+
+        // a tool patching the install in place, same size
+        try (RandomAccessFile raf = new RandomAccessFile(installed, "rw")) {
+            raf.seek(100);
+            raf.write(~data[100]);
+        }
+        Files.setLastModifiedTime(installed.toPath(), FileTime.fromMillis(installed.lastModified() + 2000));
+
+        File target = new File(folder.getRoot(), "b.u");
+        assertFalse(store.install(hash, data.length, target));
+        assertFalse(target.exists());
+        assertFalse(store.getObjectFile(hash).exists());
+    }
+
+    @Test
+    public void keepsObjectWhoseAttributesChangedButContentDidNot() throws IOException {
+        ObjectStore store = new ObjectStore(folder.newFolder("store"));
+        byte[] data = StubServer.random(10000, 3);
+        byte[] hash = StubServer.sha1(data);
+        store.put(hash, write(folder.newFile("a.u"), data));
+        File object = store.getObjectFile(hash);
+        Files.setLastModifiedTime(object.toPath(), FileTime.fromMillis(object.lastModified() + 2000));
+
+        assertTrue(store.install(hash, data.length, new File(folder.getRoot(), "b.u")));
+    }
+
+    @Test
+    public void checksAttributesRecordedBySave() throws IOException {
+        File dir = folder.newFolder("store");
+        ObjectStore store = new ObjectStore(dir);
+        byte[] data = StubServer.random(10000, 4);
+        byte[] hash = StubServer.sha1(data);
+        File installed = write(folder.newFile("a.u"), data);
+        store.put(hash, installed);
+        store.save();
+
+        write(installed, StubServer.random(10000, 5));
+        Files.setLastModifiedTime(installed.toPath(), FileTime.fromMillis(installed.lastModified() + 2000));
+        File object = store.getObjectFile(hash);
+        if (!Files.isSameFile(installed.toPath(), object.toPath())) {
+            // no hard links here, edit the object itself
+            write(object, StubServer.random(10000, 5));
+        }
+
+        assertFalse(new ObjectStore(dir).contains(hash, data.length));
+    }
+
+    @Test
+    public void ignoresUnknownAccessFile() throws IOException {
+        File dir = folder.newFolder("store");
+        ObjectStore store = new ObjectStore(dir);
+        byte[] data = StubServer.random(10000, 6);
+        byte[] hash = StubServer.sha1(data);
+        store.put(hash, write(folder.newFile("a.u"), data));
+        // no header, a count and then garbage
+        write(new File(dir, ObjectStore.ACCESS_FILE_NAME), new byte[]{0, 0, 0, 3, 0, 9, 'a'});
+
+        assertTrue(new ObjectStore(dir).install(hash, data.length, new File(folder.getRoot(), "b.u")));
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        // in place, like an editor that doesn't replace the file
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(data);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PartialDownloadTest {
+    private static final String PATH = "system/Engine.u";
+    private static final String ZIP = "/g/1/Patch/Zip/" + PATH + ".zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private ConnectionPool pool;
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        pool = new ConnectionPool(4);
+        target = new File(folder.getRoot(), "Engine.u");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void retriesZipAfterServerError() throws IOException {
+        byte[] content = StubServer.random(64 * 1024, 1);
+        server.putVersion("g", 1, Collections.singletonMap(PATH, content), 1);
+        server.failNext(ZIP, 503);
+
+        Helper helper = new Helper(server.getHost(), "g", 1, pool);
+        FileInfo fi = helper.getFileInfoMap().get(0);
+        try {
+            new FileUpdate(helper, fi, target, Runnable::run, Runnable::run).run();
+            fail();
+        } catch (FileUpdate.FetchException e) {
+            assertEquals("Server returned error: 503", e.getMessage());
+        }
+        assertNull(helper.isSplit(PATH));
+        assertFalse(new File(target.getPath() + ".part.state").exists());
+
+        // a new run asks for the archive again
+        helper = new Helper(server.getHost(), "g", 1, pool);
+        new FileUpdate(helper, fi, target, Runnable::run, Runnable::run).run();
+        assertArrayEquals(content, IOUtils.toByteArray(target.toURI()));
+        assertEquals(2, server.getHits("GET", ZIP));
+        assertEquals(0, server.getHits("GET", "/g/1/Patch/Zip/" + PATH + ".z01"));
+    }
+
+    @Test
+    public void forgetsDownloadThatDoesNotExist() throws IOException {
+        PartialDownload download = new PartialDownload(new Helper(server.getHost(), "g", 1, pool), PATH, target);
+        try {
+            download.fetch();
+            fail();
+        } catch (IOException e) {
+            assertEquals("Neither zip nor split parts found", e.getMessage());
+        }
+        assertArrayEquals(new String[0], folder.getRoot().list());
+    }
+
+    @Test
+    public void resumesWithRange() throws IOException {
+        byte[] body = StubServer.random(1 << 20, 2);
+        server.put(ZIP, body);
+        server.cutNext(ZIP, 300000);
+
+        try {
+            new PartialDownload(new Helper(server.getHost(), "g", 1, pool), PATH, target).fetch();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(300000, new File(target.getPath() + ".part").length());
+
+        PartialDownload download = new PartialDownload(new Helper(server.getHost(), "g", 1, pool), PATH, target);
+        download.fetch();
+        assertTrue(download.isResumed());
+        assertEquals("bytes=300000-", server.getLastRange(ZIP));
+        assertArrayEquals(body, read(download));
+    }
+
+    @Test
+    public void resumesSplitArchive() throws IOException {
+        byte[] body = StubServer.random(3 << 20, 3);
+        for (int part = 1; part <= 3; part++) {
+            server.put(String.format("/g/1/Patch/Zip/%s.z%02d", PATH, part), Arrays.copyOfRange(body, (part - 1) << 20, part << 20));
+        }
+        String z02 = "/g/1/Patch/Zip/" + PATH + ".z02";
+        server.cutNext(z02, 100000);
+
+        try {
+            new PartialDownload(new Helper(server.getHost(), "g", 1, pool), PATH, target).fetch();
+            fail();
+        } catch (IOException expected) {
+        }
+
+        PartialDownload download = new PartialDownload(new Helper(server.getHost(), "g", 1, pool), PATH, target);
+        download.fetch();
+        assertTrue(download.isSplit());
+        assertEquals(3, download.getCompletedParts());
+        assertEquals("bytes=100000-", server.getLastRange(z02));
+        assertEquals(1, server.getHits("GET", "/g/1/Patch/Zip/" + PATH + ".z01"));
+        assertArrayEquals(body, read(download));
+    }
+
+    private static byte[] read(PartialDownload download) throws IOException {
+        try (InputStream is = download.openStream()) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAOutputStream;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/1.1 patch server for tests: GET and HEAD of fixed bodies, single
+ * {@code Range}s, keep-alive. Counts connections, requests and the most
+ * requests handled at once, and can simulate connection setup latency and
+ * slow links.
+ */
+class StubServer implements Closeable {
+    private final ServerSocket socket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(Util.daemonThreadFactory("stub"));
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private final Map<String, Integer> errors = new ConcurrentHashMap<>();
+    private final Map<String, Integer> cuts = new ConcurrentHashMap<>();
+    private final Map<String, String> ranges = new ConcurrentHashMap<>();
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    private volatile boolean keepAlive = true;
+    private volatile long connectDelay;
+    private volatile long bytesPerSecond;
+
+    StubServer() throws IOException {
+        socket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    String getHost() {
+        return "127.0.0.1:" + socket.getLocalPort();
+    }
+
+    void put(String path, byte[] body) {
+        files.put(path, body);
+    }
+
+    void remove(String path) {
+        files.remove(path);
+    }
+
+    byte[] get(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Publishes a version: its manifest and every file LZMA-compressed as
+     * {@code Zip/<path>.zip}, or as {@code .zNN} parts if {@code parts} > 1.
+     */
+    void putVersion(String game, int version, Map<String, byte[]> content, int parts) throws IOException {
+        String base = "/" + game + "/" + version + "/Patch/";
+        StringBuilder manifest = new StringBuilder("\uFEFF");
+        for (Map.Entry<String, byte[]> e : content.entrySet()) {
+            String path = e.getKey().replace('/', '\\');
+            manifest.append(path).append(':').append(e.getValue().length)
+                    .append(':').append(Util.toHexBinary(sha1(e.getValue()))).append(":0\r\n");
+
+            byte[] compressed = lzma(e.getValue());
+            String zip = base + "Zip/" + e.getKey().replace('\\', '/');
+            if (parts <= 1) {
+                put(zip + ".zip", compressed);
+                continue;
+            }
+            int partSize = (compressed.length + parts - 1) / parts;
+            for (int part = 1; part <= parts; part++) {
+                int from = Math.min(compressed.length, (part - 1) * partSize);
+                int to = Math.min(compressed.length, part * partSize);
+                put(String.format("%s.z%02d", zip, part), Arrays.copyOfRange(compressed, from, to));
+            }
+        }
+        put(base + "FileInfoMap_" + game + "_" + version + ".dat.zip", lzma(manifest.toString().getBytes(StandardCharsets.UTF_16BE)));
+    }
+
+    /**
+     * Answers the next request for {@code path} with {@code status} and no body.
+     */
+    void failNext(String path, int status) {
+        errors.put(path, status);
+    }
+
+    /**
+     * Drops the connection after {@code bytes} of the next response body
+     * for {@code path}.
+     */
+    void cutNext(String path, int bytes) {
+        cuts.put(path, bytes);
+    }
+
+    /**
+     * {@code Range} header of the last request for {@code path}, {@code null} if it had none.
+     */
+    String getLastRange(String path) {
+        return ranges.get(path);
+    }
+
+    /**
+     * Closes every connection after one response.
+     */
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Delay before a new connection is served, as a TCP or TLS handshake
+     * to a distant server would take.
+     */
+    void setConnectDelay(long millis) {
+        this.connectDelay = millis;
+    }
+
+    /**
+     * Bandwidth of every connection, 0 for unlimited.
+     */
+    void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    int getMaxActive() {
+        return maxActive.get();
+    }
+
+    /**
+     * Requests of {@code method} for {@code path}, answered or not.
+     */
+    int getHits(String method, String path) {
+        AtomicInteger n = hits.get(method + " " + path);
+        return n != null ? n.get() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        for (Socket s : open) {
+            s.close();
+        }
+        executor.shutdownNow();
+    }
+
+    static byte[] sha1(byte[] data) {
+        return HashEngine.sha1().digest(data);
+    }
+
+    static byte[] lzma(byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (LZMAOutputStream lzma = new LZMAOutputStream(baos, new LZMA2Options(), data.length)) {
+            lzma.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Incompressible test content.
+     */
+    static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                Socket s = socket.accept();
+                connections.incrementAndGet();
+                open.add(s);
+                executor.execute(() -> serve(s));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (Socket closing = s;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            if (connectDelay > 0) {
+                Thread.sleep(connectDelay);
+            }
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+
+                String[] parts = requestLine.split(" ");
+                requests.incrementAndGet();
+                hits.computeIfAbsent(parts[0] + " " + parts[1], k -> new AtomicInteger()).incrementAndGet();
+                int now = active.incrementAndGet();
+                maxActive.accumulateAndGet(now, Math::max);
+                try {
+                    respond(parts[0], parts[1], headers.get("range"), out);
+                } finally {
+                    active.decrementAndGet();
+                }
+                out.flush();
+                if (!keepAlive) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException ignore) {
+        } finally {
+            open.remove(s);
+        }
+    }
+
+    private void respond(String method, String path, String range, OutputStream out) throws IOException, InterruptedException {
+        if (range != null) {
+            ranges.put(path, range);
+        } else {
+            ranges.remove(path);
+        }
+        Integer error = errors.remove(path);
+        if (error != null) {
+            head(out, error + " Error", 0, null);
+            return;
+        }
+        byte[] body = files.get(path);
+        if (body == null) {
+            head(out, "404 Not Found", 0, null);
+            return;
+        }
+
+        int from = 0, to = body.length;
+        String status = "200 OK";
+        String contentRange = null;
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", -1);
+            from = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                to = Math.min(body.length, Integer.parseInt(bounds[1]) + 1);
+            }
+            if (from >= body.length) {
+                head(out, "416 Range Not Satisfiable", 0, "bytes */" + body.length);
+                return;
+            }
+            status = "206 Partial Content";
+            contentRange = "bytes " + from + "-" + (to - 1) + "/" + body.length;
+        }
+        head(out, status, to - from, contentRange);
+        if (method.equals("HEAD")) {
+            return;
+        }
+
+        Integer cut = cuts.remove(path);
+        int chunk = 1 << 14;
+        for (int pos = from; pos < to; pos += chunk) {
+            int n = Math.min(chunk, to - pos);
+            if (cut != null && pos + n > from + cut) {
+                out.write(body, pos, from + cut - pos);
+                out.flush();
+                throw new IOException("cut");
+            }
+            out.write(body, pos, n);
+            long rate = bytesPerSecond;
+            if (rate > 0) {
+                out.flush();
+                Thread.sleep(n * 1000L / rate);
+            }
+        }
+    }
+
+    private void head(OutputStream out, String status, long length, String contentRange) throws IOException {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n");
+        if (contentRange != null) {
+            sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        if (!keepAlive) {
+            sb.append("Connection: close\r\n");
+        }
+        out.write(sb.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int len = sb.length();
+                return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class VersionScannerTest {
+    private static final int LATEST = 37;
+    private static final int PROBES = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private VersionSwitcher switcher;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        for (int version = 1; version <= LATEST; version++) {
+            publish(version);
+        }
+        switcher = new VersionSwitcher(new ConnectionPool(PROBES));
+        cacheFile = new File(folder.getRoot(), "versions");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        switcher.close();
+        server.close();
+    }
+
+    @Test(timeout = 30000)
+    public void findsLatestVersion() throws Exception {
+        VersionScanner scanner = scanner(VersionScanner.DEFAULT_TTL);
+        assertEquals(LATEST, (int) scanner.findLatest(server.getHost(), "g", 1).get());
+        // gallop 1,2,4,8 .. 33,34,36,40 until 40 misses, then probe 37,38,39
+        assertEquals(5 * PROBES + 3, scanner.getRequests());
+        assertEquals(scanner.getRequests(), server.getRequests());
+    }
+
+    @Test(timeout = 30000)
+    public void skipsCachedVersions() throws Exception {
+        VersionScanner scanner = scanner(VersionScanner.DEFAULT_TTL);
+        scanner.findLatest(server.getHost(), "g", 1).get();
+        scanner.save();
+        int requests = server.getRequests();
+
+        // only versions above the cached latest are probed: 38,39,41,45
+        VersionScanner warm = scanner(VersionScanner.DEFAULT_TTL);
+        assertEquals(LATEST, (int) warm.findLatest(server.getHost(), "g", 1).get());
+        assertEquals(PROBES, warm.getRequests());
+        assertEquals(requests + PROBES, server.getRequests());
+        assertEquals(1, server.getHits("HEAD", manifest(LATEST)));
+
+        publish(LATEST + 1);
+        assertEquals(LATEST + 1, (int) scanner(VersionScanner.DEFAULT_TTL).findLatest(server.getHost(), "g", 1).get());
+    }
+
+    @Test(timeout = 30000)
+    public void probesExpiredVersionsAgain() throws Exception {
+        VersionScanner scanner = scanner(VersionScanner.DEFAULT_TTL);
+        scanner.findLatest(server.getHost(), "g", 1).get();
+        scanner.save();
+
+        VersionScanner expired = scanner(0);
+        assertEquals(LATEST, (int) expired.findLatest(server.getHost(), "g", 1).get());
+        assertEquals(scanner.getRequests(), expired.getRequests());
+    }
+
+    private VersionScanner scanner(long ttl) {
+        VersionScanner scanner = new VersionScanner(switcher, cacheFile, ttl);
+        scanner.setProbes(PROBES);
+        return scanner;
+    }
+
+    private void publish(int version) {
+        server.put(manifest(version), new byte[1]);
+    }
+
+    private static String manifest(int version) {
+        return "/g/" + version + "/Patch/FileInfoMap_g_" + version + ".dat.zip";
+    }
+}
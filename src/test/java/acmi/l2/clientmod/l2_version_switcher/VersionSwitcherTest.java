@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2_version_switcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class VersionSwitcherTest {
+    private static final int FILES = 8;
+    private static final int PARTS = 6;
+    // larger than a ChunkPipe holds, which is all the deadlock needed
+    private static final int PART_SIZE = 2 << 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Prefetched parts used to hold connections while waiting for the
+     * reader, which in turn waited for a connection to its first part.
+     */
+    @Test(timeout = 90000)
+    public void exportsSplitArchivesWithFewConnections() throws Exception {
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        for (int i = 0; i < FILES; i++) {
+            content.put("system/file" + i + ".u", StubServer.random(1024, i));
+        }
+        server.putVersion("g", 1, content, PARTS);
+        // export keeps payloads compressed, so the parts can be any bytes
+        byte[] part = StubServer.random(PART_SIZE, 0);
+        for (String path : content.keySet()) {
+            for (int i = 1; i <= PARTS; i++) {
+                server.put(String.format("/g/1/Patch/Zip/%s.z%02d", path, i), part);
+            }
+        }
+
+        File file = new File(folder.getRoot(), "g_1.bundle");
+        try (VersionSwitcher switcher = new VersionSwitcher(new ConnectionPool(2))) {
+            switcher.setMaxConcurrency(2);
+            VersionSwitcher.Plan plan = switcher.plan(switcher.getHelper(server.getHost(), "g", 1), 0, null).get();
+            assertEquals(FILES, (int) switcher.export(plan, file).get(60, TimeUnit.SECONDS));
+        }
+
+        try (Bundle bundle = Bundle.open(file)) {
+            assertEquals(FILES, bundle.getEntries().size());
+            for (Bundle.Entry entry : bundle.getEntries()) {
+                assertEquals((long) PARTS * PART_SIZE, entry.getLength());
+            }
+        }
+        assertArrayEquals(new String[]{"g_1.bundle"}, folder.getRoot().list());
+    }
+
+    @Test
+    public void leavesNoBundleWhenFilesAreMissing() throws Exception {
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        content.put("system/Engine.u", StubServer.random(1024, 1));
+        content.put("system/Core.u", StubServer.random(1024, 2));
+        server.putVersion("g", 1, content, 1);
+        server.remove("/g/1/Patch/Zip/system/Core.u.zip");
+
+        File file = new File(folder.getRoot(), "g_1.bundle");
+        try (VersionSwitcher switcher = new VersionSwitcher(new ConnectionPool(2))) {
+            VersionSwitcher.Plan plan = switcher.plan(switcher.getHelper(server.getHost(), "g", 1), 0, null).get();
+            switcher.export(plan, file).get(30, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("1 of 2 files exported", e.getCause().getMessage());
+        }
+        assertArrayEquals(new String[0], folder.getRoot().list());
+    }
+
+    @Test
+    public void deletesRemovedFilesOnApply() throws Exception {
+        byte[] engine = StubServer.random(1024, 1);
+        Map<String, byte[]> v1 = new LinkedHashMap<>();
+        v1.put("system/Engine.u", engine);
+        v1.put("system/Old.u", StubServer.random(1024, 2));
+        server.putVersion("g", 1, v1, 1);
+        server.putVersion("g", 2, Collections.singletonMap("system/Engine.u", engine), 1);
+
+        File dir = folder.newFolder("install");
+        for (Map.Entry<String, byte[]> e : v1.entrySet()) {
+            File file = new File(dir, e.getKey());
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), e.getValue());
+        }
+
+        List<String> removed = new ArrayList<>();
+        try (VersionSwitcher switcher = new VersionSwitcher(new ConnectionPool(2))) {
+            switcher.setListener(new ProgressListener() {
+                @Override
+                public void fileRemoved(InstallTarget target, String path, boolean deleted) {
+                    removed.add(path + (deleted ? " deleted" : " kept"));
+                }
+            });
+            VersionSwitcher.Plan plan = switcher.plan(switcher.getHelper(server.getHost(), "g", 2), 1, null).get();
+            List<InstallTarget> targets = Collections.singletonList(new InstallTarget(dir, false, false));
+
+            switcher.apply(switcher.verify(plan, targets, VerifyTier.QUICK).get()).get(30, TimeUnit.SECONDS);
+            assertTrue(new File(dir, "system/Old.u").exists());
+
+            switcher.setDeleteRemoved(true);
+            switcher.apply(switcher.verify(plan, targets, VerifyTier.QUICK).get()).get(30, TimeUnit.SECONDS);
+            assertFalse(new File(dir, "system/Old.u").exists());
+            assertTrue(new File(dir, "system/Engine.u").exists());
+            assertTrue(targets.get(0).getErrors().isEmpty());
+        }
+        assertEquals(Arrays.asList("system\\Old.u kept", "system\\Old.u deleted"), removed);
+    }
+}